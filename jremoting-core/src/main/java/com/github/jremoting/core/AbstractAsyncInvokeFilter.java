@@ -0,0 +1,21 @@
+package com.github.jremoting.core;
+
+/**
+ * a plain filter before this one calls invoke for async invokes too, they are routed to invokeAsync here
+ */
+public abstract class AbstractAsyncInvokeFilter extends AbstractInvokeFilter implements AsyncInvokeFilter {
+
+	@Override
+	public Object invoke(Invoke invoke) {
+		if(invoke.isAsync()) {
+			return invokeAsync(invoke);
+		}
+		return invokeSync(invoke);
+	}
+
+	protected abstract Object invokeSync(Invoke invoke);
+
+	protected MessageFuture invokeNextAsync(Invoke invoke) {
+		return InvokeFilterUtil.invokeAsync(getNext(), invoke);
+	}
+}
@@ -0,0 +1,13 @@
+package com.github.jremoting.core;
+
+/**
+ * the non-blocking variant of a filter. the client chain calls invokeAsync for async invokes
+ * ({@link Invoke#isAsync()}) and invoke for the rest. invokeAsync must not block, it continues
+ * with {@link InvokeFilterUtil#invokeAsync(InvokeFilter, Invoke)} on the next filter and acts on
+ * the result with a {@link MessageFutureListener}, or returns a future of its own.
+ * see {@link AbstractAsyncInvokeFilter}
+ */
+public interface AsyncInvokeFilter extends InvokeFilter {
+
+	MessageFuture invokeAsync(Invoke invoke);
+}
@@ -0,0 +1,20 @@
+package com.github.jremoting.core;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * invokes of the annotated method, or of every method of the annotated interface, go over the
+ * bulk connections of the provider address instead of the ones small calls share, and so do
+ * their results. for exports and uploads that would otherwise hold up every call queued behind
+ * them. put it on the service interface the consumer calls.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.METHOD, ElementType.TYPE})
+public @interface Bulk {
+
+}
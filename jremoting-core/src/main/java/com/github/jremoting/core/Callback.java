@@ -0,0 +1,21 @@
+package com.github.jremoting.core;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * an argument whose parameter type is an interface with this annotation is passed by reference.
+ * the provider gets a proxy, and its calls come back to the consumer's object over the connection
+ * the invoke came on. void methods are sent one way, the rest wait for the consumer's answer.
+ * the consumer keeps the object until the provider's proxies of it are released, by
+ * CallbackProxy.release(proxy) or by being garbage collected, or the connection closes.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface Callback {
+
+}
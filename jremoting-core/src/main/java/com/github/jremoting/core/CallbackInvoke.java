@@ -0,0 +1,22 @@
+package com.github.jremoting.core;
+
+/**
+ * a call of a provider on a {@link Callback} argument, sent back to the consumer that passed it.
+ * the interface name is the callback interface, the target the consumer's object with callbackId
+ */
+public class CallbackInvoke extends Invoke {
+
+	public static final String VERSION = "callback";
+
+	private final int callbackId;
+
+	public CallbackInvoke(int callbackId, boolean isTwoWay, String interfaceName, String methodName,
+			Serializer serializer, Object[] args, Class<?>[] parameterTypes) {
+		super(isTwoWay, interfaceName, VERSION, methodName, serializer, args, parameterTypes);
+		this.callbackId = callbackId;
+	}
+
+	public int getCallbackId() {
+		return callbackId;
+	}
+}
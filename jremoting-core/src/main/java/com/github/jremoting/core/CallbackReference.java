@@ -0,0 +1,17 @@
+package com.github.jremoting.core;
+
+/**
+ * provider side stand in for a {@link Callback} argument, until the server replaces it by a proxy
+ */
+public class CallbackReference {
+
+	private final int callbackId;
+
+	public CallbackReference(int callbackId) {
+		this.callbackId = callbackId;
+	}
+
+	public int getCallbackId() {
+		return callbackId;
+	}
+}
@@ -0,0 +1,24 @@
+package com.github.jremoting.core;
+
+/**
+ * one way event from a provider, it dropped its proxy of the callback with this id. references is how
+ * many times the consumer sent the id for that proxy, the consumer forgets the callback once all are released
+ */
+public class CallbackReleaseMessage extends Message {
+
+	private final int references;
+
+	public CallbackReleaseMessage(int callbackId, int references) {
+		super(false, null);
+		this.setId(callbackId);
+		this.references = references;
+	}
+
+	public int getCallbackId() {
+		return (int)getId();
+	}
+
+	public int getReferences() {
+		return references;
+	}
+}
@@ -0,0 +1,13 @@
+package com.github.jremoting.core;
+
+/**
+ * one way event telling the provider the caller abandoned the invoke with this id
+ */
+public class CancelMessage extends Message {
+
+	public CancelMessage(long msgId) {
+		super(false, null);
+		this.setId(msgId);
+	}
+
+}
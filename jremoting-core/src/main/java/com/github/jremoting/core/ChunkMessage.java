@@ -0,0 +1,55 @@
+package com.github.jremoting.core;
+
+import com.github.jremoting.io.ByteBuffer;
+
+/**
+ * one piece of a frame too large to send at once, or of a File or InputStream value, see
+ * {@link Protocal#getChunkSize}. other frames go between the pieces. the id is the transfer id,
+ * pieces of frames and of contents count their ids apart. encode writes only the head, the
+ * length bytes of the piece follow it. decode hands the piece out as a view of the received bytes.
+ */
+public class ChunkMessage extends Message {
+
+	private final boolean content;
+	private final boolean last;
+	//the sender could not read the content to its end, only on the last piece
+	private final boolean aborted;
+	private final int length;
+	private ByteBuffer piece;
+
+	public ChunkMessage(long transferId, boolean content, boolean last, boolean aborted, int length) {
+		super(false, null);
+		this.setId(transferId);
+		this.content = content;
+		this.last = last;
+		this.aborted = aborted;
+		this.length = length;
+	}
+
+	public boolean isContent() {
+		return content;
+	}
+
+	public boolean isLast() {
+		return last;
+	}
+
+	public boolean isAborted() {
+		return aborted;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * valid until the decoder reads on, retain what is kept longer
+	 */
+	public ByteBuffer getPiece() {
+		return piece;
+	}
+
+	public void setPiece(ByteBuffer piece) {
+		this.piece = piece;
+	}
+}
@@ -0,0 +1,24 @@
+package com.github.jremoting.core;
+
+/**
+ * stand in for a File or InputStream value while its content is still coming in pieces,
+ * replaced by the received content before the message is handed on
+ */
+public class ContentReference {
+
+	private final long transferId;
+	private final Class<?> type;
+
+	public ContentReference(long transferId, Class<?> type) {
+		this.transferId = transferId;
+		this.type = type;
+	}
+
+	public long getTransferId() {
+		return transferId;
+	}
+
+	public Class<?> getType() {
+		return type;
+	}
+}
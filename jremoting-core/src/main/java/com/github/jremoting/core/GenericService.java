@@ -26,6 +26,26 @@ public class GenericService  {
 		return rpcClient.invoke(invoke);
 	}
 	
+	/**
+	 * returns without waiting for the result, MessageFuture.get() throws the remote error if the call failed
+	 */
+	public MessageFuture invokeAsync(String methodName, 
+			String[] parameterTypeNames, Object[] args) {
+		Invoke invoke = new Invoke(interfaceName, version, methodName, serializer, args, parameterTypeNames);
+		invoke.setTimeout(timeout);
+		invoke.setRemoteAddress(address);
+		invoke.setAsync(true);
+		return (MessageFuture)rpcClient.invoke(invoke);
+	}
+	
+	/**
+	 * listener receives the result, or the exception if the call failed
+	 */
+	public void invoke(String methodName, 
+			String[] parameterTypeNames, Object[] args, MessageFutureListener listener) {
+		invokeAsync(methodName, parameterTypeNames, args).addListener(listener);
+	}
+	
 	public GenericService start() {
 		this.rpcClient.register(new ServiceParticipantInfo(this.interfaceName + ":" + this.version , NetUtil.getLocalHost(), ParticipantType.CONSUMER));
 		return this;
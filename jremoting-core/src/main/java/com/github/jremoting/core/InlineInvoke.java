@@ -0,0 +1,19 @@
+package com.github.jremoting.core;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * run the annotated provider method directly on the io thread instead of the provider executor.
+ * only for methods that never block, like in memory lookups. a method that keeps exceeding
+ * budgetMicros is demoted back to the executor. put it on the method of the target class.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface InlineInvoke {
+	long budgetMicros() default 1000;
+}
@@ -1,5 +1,6 @@
 package com.github.jremoting.core;
 
+import java.util.concurrent.TimeUnit;
 
 
 public class Invoke extends Message {
@@ -15,12 +16,22 @@ public class Invoke extends Message {
 	private ServiceRegistry registry;
 	private final String serviceName;
 	private final boolean generic;
+	private boolean async;
+	private boolean bulk;
+	//System.nanoTime() after which the caller gave up, 0 means none
+	private long deadline;
+	private volatile boolean cancelled;
 	
 	
 	
 	public Invoke(String interfaceName, String version,String methodName ,
 			Serializer serializer, Object[] args, Class<?>[] parameterTypes) {
-		super(true, serializer);
+		this(true, interfaceName, version, methodName, serializer, args, parameterTypes);
+	}
+	
+	protected Invoke(boolean isTwoWay, String interfaceName, String version,String methodName ,
+			Serializer serializer, Object[] args, Class<?>[] parameterTypes) {
+		super(isTwoWay, serializer);
 		this.args = args;
 		this.interfaceName = interfaceName;
 		this.version = version;
@@ -36,6 +47,21 @@ public class Invoke extends Message {
 		this.generic = false;
 	}
 	
+	/**
+	 * for subclasses that supply the arguments and their types themselves
+	 */
+	protected Invoke(boolean isTwoWay, String interfaceName, String version, String methodName, Serializer serializer) {
+		super(isTwoWay, serializer);
+		this.args = null;
+		this.interfaceName = interfaceName;
+		this.version = version;
+		this.methodName = methodName;
+		this.parameterTypes = null;
+		this.parameterTypeNames = null;
+		this.serviceName = this.interfaceName + ":" + this.version;
+		this.generic = false;
+	}
+	
 	public Invoke(String interfaceName, String version,String methodName ,
 			Serializer serializer, Object[] args, String[] parameterTypeNames) {
 		super(true, serializer);
@@ -102,5 +128,60 @@ public class Invoke extends Message {
 	public boolean isGeneric() {
 		return generic;
 	}
+
+	/**
+	 * an async invoke returns a {@link MessageFuture} from the filter chain instead of the result
+	 */
+	public boolean isAsync() {
+		return async;
+	}
+
+	public void setAsync(boolean async) {
+		this.async = async;
+	}
+
+	/**
+	 * client side, send over the bulk connections of the address, see {@link Bulk}
+	 */
+	public boolean isBulk() {
+		return bulk;
+	}
+
+	public void setBulk(boolean bulk) {
+		this.bulk = bulk;
+	}
+
+	/**
+	 * client side set from the timeout before sending, server side from the remaining time in the request header
+	 */
+	public void setDeadline(long deadline) {
+		this.deadline = deadline;
+	}
+
+	public long getDeadline() {
+		return deadline;
+	}
+
+	public boolean hasDeadline() {
+		return deadline != 0;
+	}
+
+	/**
+	 * millis until the deadline, negative once passed. only meaningful if {@link #hasDeadline()}
+	 */
+	public long getRemainingMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+	}
+
+	/**
+	 * server side, the caller abandoned this invoke. long running providers can poll it through {@link InvokeContext#isCancelled()}
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	public void setCancelled(boolean cancelled) {
+		this.cancelled = cancelled;
+	}
 	
 }
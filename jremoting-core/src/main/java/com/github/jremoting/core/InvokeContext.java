@@ -0,0 +1,43 @@
+package com.github.jremoting.core;
+
+/**
+ * the invoke a provider thread is serving, so outbound calls made while serving it inherit
+ * its remaining deadline. set by the server around the provider call, not visible to code
+ * that runs after an async result is returned.
+ */
+public class InvokeContext {
+
+	private static final ThreadLocal<Invoke> CURRENT = new ThreadLocal<Invoke>();
+
+	public static Invoke getCurrent() {
+		return CURRENT.get();
+	}
+
+	public static void setCurrent(Invoke invoke) {
+		if(invoke == null) {
+			CURRENT.remove();
+		}
+		else {
+			CURRENT.set(invoke);
+		}
+	}
+
+	/**
+	 * millis left for the invoke being served, -1 if there is none or it has no deadline
+	 */
+	public static long getRemainingMillis() {
+		Invoke invoke = CURRENT.get();
+		if(invoke == null || !invoke.hasDeadline()) {
+			return -1;
+		}
+		return Math.max(0, invoke.getRemainingMillis());
+	}
+
+	/**
+	 * the caller of the invoke being served cancelled it or timed out, stop working on it
+	 */
+	public static boolean isCancelled() {
+		Invoke invoke = CURRENT.get();
+		return invoke != null && invoke.isCancelled();
+	}
+}
@@ -1,6 +1,11 @@
 package com.github.jremoting.core;
 
 
+/**
+ * client side filters of an async invoke ({@link Invoke#isAsync()}) get a {@link MessageFuture} back
+ * from the next filter. they must not block on it, add a {@link MessageFutureListener} to act on the result.
+ * filters that want a typed hook for that implement {@link AsyncInvokeFilter}.
+ */
 public interface InvokeFilter {
 	
 	InvokeFilter getNext();
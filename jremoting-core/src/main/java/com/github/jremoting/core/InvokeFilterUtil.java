@@ -24,4 +24,14 @@ public class InvokeFilterUtil {
 		return filters.get(0);
 	}
 	
+	/**
+	 * the async hook of the filter, or for filters without one the future its invoke returns
+	 */
+	public static MessageFuture invokeAsync(InvokeFilter filter, Invoke invoke) {
+		if(filter instanceof AsyncInvokeFilter) {
+			return ((AsyncInvokeFilter)filter).invokeAsync(invoke);
+		}
+		return (MessageFuture)filter.invoke(invoke);
+	}
+	
 }
@@ -0,0 +1,14 @@
+package com.github.jremoting.core;
+
+/**
+ * a request or result whose body the io thread left in its received bytes, see
+ * JRemotingProtocal#setLazyDecodeThreshold. the first thread that asks for the arguments or
+ * the result deserializes them, so large bodies do not hold up the other connections of an event loop.
+ */
+public interface LazyBody {
+
+	/**
+	 * deserializes the body unless done already, throws what decoding it threw
+	 */
+	void decodeBody();
+}
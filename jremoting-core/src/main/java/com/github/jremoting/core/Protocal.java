@@ -4,7 +4,16 @@ import com.github.jremoting.exception.ProtocalException;
 import com.github.jremoting.io.ByteBuffer;
 
 public interface Protocal {
-	void encode(Message msg, ByteBuffer buffer) throws ProtocalException;
-	Message decode(ByteBuffer buffer) throws ProtocalException;
+	/**
+	 * per connection state passed back to encode and decode of that connection, may be null
+	 */
+	ProtocalSession createSession();
+	void encode(Message msg, ByteBuffer buffer, ProtocalSession session) throws ProtocalException;
+	Message decode(ByteBuffer buffer, ProtocalSession session) throws ProtocalException;
 	ServiceRegistry getRegistry();
+	/**
+	 * frames of msg longer than this are sent as {@link ChunkMessage} pieces of this size, so they
+	 * do not hold up the frames behind them. 0 sends them whole
+	 */
+	int getChunkSize(Message msg, ProtocalSession session);
 }
@@ -0,0 +1,9 @@
+package com.github.jremoting.core;
+
+/**
+ * state a {@link Protocal} keeps for one connection, like names already sent to the peer.
+ * created once per channel by {@link Protocal#createSession()} and only used by that channel's event loop.
+ */
+public interface ProtocalSession {
+
+}
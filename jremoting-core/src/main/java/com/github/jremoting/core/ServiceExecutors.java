@@ -0,0 +1,18 @@
+package com.github.jremoting.core;
+
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * optional for a {@link ServiceProvider}, a provider that implements it runs its invokes on its own executors
+ */
+public interface ServiceExecutors {
+	 /**
+	  * executor for the invokes of this service, null means the server's default executor
+	  */
+	 Executor getExecutor();
+	 /**
+	  * key = methodName, overrides getExecutor for that method. may be null
+	  */
+	 Map<String, Executor> getMethodExecutors();
+}
@@ -0,0 +1,20 @@
+package com.github.jremoting.core;
+
+/**
+ * one way event from the caller of a stream, the provider may send credit more elements
+ * of the stream with this id
+ */
+public class StreamCreditMessage extends Message {
+
+	private final int credit;
+
+	public StreamCreditMessage(long msgId, int credit) {
+		super(false, null);
+		this.setId(msgId);
+		this.credit = credit;
+	}
+
+	public int getCredit() {
+		return credit;
+	}
+}
@@ -0,0 +1,19 @@
+package com.github.jremoting.core;
+
+/**
+ * one element of an Iterator returned by a provider method, or the end of it. all elements
+ * of a stream carry the msgId of its invoke, errors end the stream with a plain {@link InvokeResult}
+ */
+public class StreamResult extends InvokeResult {
+
+	private final boolean end;
+
+	public StreamResult(Object result, long msgId, Serializer serializer, boolean end) {
+		super(result, msgId, serializer);
+		this.end = end;
+	}
+
+	public boolean isEnd() {
+		return end;
+	}
+}
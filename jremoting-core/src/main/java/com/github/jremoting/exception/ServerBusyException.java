@@ -0,0 +1,14 @@
+package com.github.jremoting.exception;
+
+/**
+ * the provider rejected the invoke without running it, it is safe to retry on another provider
+ */
+public class ServerBusyException extends ServerErrorException {
+
+	private static final long serialVersionUID = 3370937126471389361L;
+
+	public ServerBusyException(String msg) {
+		super(msg);
+	}
+
+}
@@ -3,9 +3,12 @@ package com.github.jremoting.invoke;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 
+import com.github.jremoting.core.Bulk;
 import com.github.jremoting.core.Invoke;
+import com.github.jremoting.core.MessageFuture;
 import com.github.jremoting.core.RpcClient;
 import com.github.jremoting.core.Serializer;
+import com.github.jremoting.remoting.AsyncResults;
 
 public class ClientInvocationHandler implements InvocationHandler {
 
@@ -47,6 +50,15 @@ public class ClientInvocationHandler implements InvocationHandler {
 			invoke.setRemoteAddress(remoteAddress);
 		}
 		invoke.setTimeout(this.timeout);
+		invoke.setBulk(method.isAnnotationPresent(Bulk.class) || method.getDeclaringClass().isAnnotationPresent(Bulk.class));
+		//methods declared to return MessageFuture or Future do not block the caller
+		if(method.getReturnType() != Object.class && method.getReturnType().isAssignableFrom(MessageFuture.class)) {
+			invoke.setAsync(true);
+		}
+		else if(AsyncResults.isCompletableFutureType(method.getReturnType())) {
+			invoke.setAsync(true);
+			return AsyncResults.toCompletableFuture((MessageFuture)rpcClient.invoke(invoke));
+		}
 		return rpcClient.invoke(invoke);
 	}
 	public long getTimeout() {
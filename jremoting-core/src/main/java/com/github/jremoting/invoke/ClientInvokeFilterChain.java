@@ -3,15 +3,16 @@ package com.github.jremoting.invoke;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
 
 import com.github.jremoting.core.Invoke;
 import com.github.jremoting.core.InvokeFilter;
+import com.github.jremoting.core.InvokeContext;
 import com.github.jremoting.core.InvokeFilterUtil;
 import com.github.jremoting.core.MessageFuture;
 import com.github.jremoting.core.MessageChannel;
 import com.github.jremoting.exception.RemotingException;
 import com.github.jremoting.exception.ServerErrorException;
+import com.github.jremoting.exception.TimeoutException;
 
 public class ClientInvokeFilterChain {
 
@@ -23,6 +24,9 @@ public class ClientInvokeFilterChain {
 	}
     
 	public Object invoke(Invoke invoke) {
+		if(invoke.isAsync()) {
+			return InvokeFilterUtil.invokeAsync(this.head, invoke);
+		}
 		return this.head.invoke(invoke);
 	}
 	
@@ -41,12 +45,24 @@ public class ClientInvokeFilterChain {
 				return null;
 			}
 			
-			
+			//the channel schedules the timeout when the invoke is written
+			if(invoke.getTimeout() <= 0) {
+				invoke.setTimeout(DEFAULT_TIMEOUT);
+			}
+			//a call made while serving another invoke may not outlive that invoke's caller
+			long remaining = InvokeContext.getRemainingMillis();
+			if(remaining >= 0 && remaining < invoke.getTimeout()) {
+				if(remaining == 0) {
+					throw new TimeoutException("deadline of the served invoke passed");
+				}
+				invoke.setTimeout(remaining);
+			}
+			invoke.setDeadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(invoke.getTimeout()));
 			MessageFuture future = messageChannel.send(invoke);
+			if(invoke.isAsync()) {
+				return future;
+			}
 			try {
-				if(invoke.getTimeout() <= 0) {
-					invoke.setTimeout(DEFAULT_TIMEOUT);
-				}
 				Object result =  future.get(invoke.getTimeout(), TimeUnit.MILLISECONDS);
 				if(result instanceof ServerErrorException) {
 					throw (ServerErrorException)result;
@@ -56,8 +72,8 @@ public class ClientInvokeFilterChain {
 				throw new RemotingException(e);
 			} catch (ExecutionException e) {
 				throw new RemotingException(e);
-			} catch (TimeoutException e) {
-				throw new com.github.jremoting.exception.TimeoutException("invoke time out timeout:" + invoke.getTimeout());
+			} catch (java.util.concurrent.TimeoutException e) {
+				throw new TimeoutException("invoke time out timeout:" + invoke.getTimeout());
 			}
 		}
 		
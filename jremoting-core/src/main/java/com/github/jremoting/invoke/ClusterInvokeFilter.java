@@ -3,32 +3,126 @@ package com.github.jremoting.invoke;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicLong;
 
-import com.github.jremoting.core.AbstractInvokeFilter;
+import com.github.jremoting.core.AbstractAsyncInvokeFilter;
 import com.github.jremoting.core.Invoke;
+import com.github.jremoting.core.MessageFuture;
+import com.github.jremoting.core.MessageFutureListener;
 import com.github.jremoting.core.ServiceParticipantInfo;
 import com.github.jremoting.exception.RemotingException;
+import com.github.jremoting.exception.ServerBusyException;
+import com.github.jremoting.remoting.CallbackExecutor;
+import com.github.jremoting.remoting.DefaultMessageFuture;
+import com.github.jremoting.util.Logger;
+import com.github.jremoting.util.LoggerFactory;
 
-public class ClusterInvokeFilter extends AbstractInvokeFilter {
-	
+public class ClusterInvokeFilter extends AbstractAsyncInvokeFilter {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ClusterInvokeFilter.class);
 
-	
 	private AtomicLong nextIndex = new AtomicLong(0);
 
 	@Override
-	public Object invoke(Invoke invoke) {
+	public MessageFuture invokeAsync(Invoke invoke) {
+		if(invoke.getRemoteAddress() != null) {
+			return invokeNextAsync(invoke);
+		}
+		List<ServiceParticipantInfo> providers = getProviders(invoke);
+		BusyRetryFuture future = new BusyRetryFuture(invoke, providers, nextStart(providers));
+		future.invokeNext();
+		return future;
+	}
+
+	@Override
+	protected Object invokeSync(Invoke invoke) {
 		if(invoke.getRemoteAddress() != null) {
 			return getNext().invoke(invoke);
 		}
-		
+
+		List<ServiceParticipantInfo> providers = getProviders(invoke);
+		int start = nextStart(providers);
+
+		//a busy provider did not run the invoke, try each other provider once
+		for (int i = 0; ; i++) {
+			ServiceParticipantInfo provider = providers.get((start + i) % providers.size());
+			invoke.setRemoteAddress(provider.getAddress());
+			try {
+				return getNext().invoke(invoke);
+			} catch (ServerBusyException e) {
+				if(i + 1 >= providers.size()) {
+					throw e;
+				}
+				logRetry(provider, e);
+			}
+		}
+	}
+
+	private List<ServiceParticipantInfo> getProviders(Invoke invoke) {
 		List<ServiceParticipantInfo> providers = invoke.getRegistry().getProviders(invoke.getServiceName());
-		
 		if(providers == null || providers.isEmpty()) {
 			throw new RemotingException("no provier for service " + invoke.getServiceName());
 		}
-		ServiceParticipantInfo provider = providers.get((int)(nextIndex.getAndIncrement() % providers.size()));
-		
-		invoke.setRemoteAddress(provider.getAddress());
-		
-		return getNext().invoke(invoke);
+		return providers;
+	}
+
+	private int nextStart(List<ServiceParticipantInfo> providers) {
+		return (int)(nextIndex.getAndIncrement() % providers.size());
+	}
+
+	private void logRetry(ServiceParticipantInfo provider, ServerBusyException e) {
+		if(LOGGER.isDebugEnabled()) {
+			LOGGER.debug("provider " + provider.getAddress() + " busy, retry next provider. " + e.getMessage());
+		}
+	}
+
+	/**
+	 * async version of the busy retry, resends from the listener of the previous attempt
+	 */
+	private class BusyRetryFuture extends DefaultMessageFuture implements MessageFutureListener {
+		private final Invoke invoke;
+		private final List<ServiceParticipantInfo> providers;
+		private final int start;
+		private int attempts = 0;
+		private volatile MessageFuture current;
+
+		public BusyRetryFuture(Invoke invoke, List<ServiceParticipantInfo> providers, int start) {
+			//completed from listeners of the attempts, which already run on the channel's callback executor
+			super(invoke, CallbackExecutor.INLINE);
+			this.invoke = invoke;
+			this.providers = providers;
+			this.start = start;
+		}
+
+		private void invokeNext() {
+			ServiceParticipantInfo provider = providers.get((start + attempts) % providers.size());
+			attempts++;
+			invoke.setRemoteAddress(provider.getAddress());
+			MessageFuture future = invokeNextAsync(invoke);
+			current = future;
+			future.addListener(this);
+		}
+
+		@Override
+		public void onMessage(Object result) {
+			if(result instanceof ServerBusyException && attempts < providers.size() && !isDone()) {
+				logRetry(providers.get((start + attempts - 1) % providers.size()), (ServerBusyException)result);
+				try {
+					invokeNext();
+				} catch (RuntimeException e) {
+					setResult(e);
+				}
+				return;
+			}
+			setResult(result);
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			boolean cancelled = super.cancel(mayInterruptIfRunning);
+			MessageFuture future = current;
+			if(cancelled && future != null) {
+				future.cancel(mayInterruptIfRunning);
+			}
+			return cancelled;
+		}
 	}
 }
@@ -47,11 +47,29 @@ public interface ByteBuffer extends Comparable<ByteBuffer> {
 
 	void writeBytes(byte[] src, int index, int length);
 
+	/**
+	 * writes src from its position to its limit, src itself is left as it is. an implementation may
+	 * reference a large src instead of copying it, such bytes are not counted by writerIndex
+	 * and src must not change until the buffer is sent. so call it after everything else of the frame
+	 */
+	void writeBytes(java.nio.ByteBuffer src);
+
+	/**
+	 * a File or InputStream to send behind this frame as content pieces with transferId, see
+	 * {@link com.github.jremoting.core.ChunkMessage}. it is read while it is sent, never held whole
+	 */
+	void writeContent(long transferId, Object content);
+
 	int writerIndex();
 
 	void writerIndex(int writerIndex);
 	
 	ByteBuffer slice(int index, int length);
+
+	/**
+	 * a copy of length bytes at index on the heap, owned by no pool, for bytes read later by another thread
+	 */
+	ByteBuffer copy(int index, int length);
 	
 	byte[] array();
 
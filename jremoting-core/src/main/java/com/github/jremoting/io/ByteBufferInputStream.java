@@ -49,7 +49,7 @@ public class ByteBufferInputStream extends InputStream {
 
     @Override
     public int read() throws IOException {
-        if (!buffer.readable()) {
+        if (available() <= 0) {
             return -1;
         }
         return buffer.readByte() & 0xff;
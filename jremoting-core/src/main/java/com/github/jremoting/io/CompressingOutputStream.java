@@ -0,0 +1,82 @@
+package com.github.jremoting.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * writes into the buffer as it is, until more than threshold bytes came. then the bytes written
+ * so far are taken back and everything is deflated straight into the buffer from there on.
+ * small bodies are never copied, big ones are never held in full outside the buffer.
+ */
+public class CompressingOutputStream extends OutputStream {
+
+	private final ByteBuffer buffer;
+	private final int startIndex;
+	private final int threshold;
+	private final Deflater deflater;
+	private DeflaterOutputStream deflating;
+	private final byte[] single = new byte[1];
+
+	public CompressingOutputStream(ByteBuffer buffer, int threshold, Deflater deflater) {
+		this.buffer = buffer;
+		this.startIndex = buffer.writerIndex();
+		this.threshold = threshold;
+		this.deflater = deflater;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		single[0] = (byte)b;
+		write(single, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if(deflating == null) {
+			if(buffer.writerIndex() - startIndex + len <= threshold) {
+				buffer.writeBytes(b, off, len);
+				return;
+			}
+			startDeflating();
+		}
+		deflating.write(b, off, len);
+	}
+
+	private void startDeflating() throws IOException {
+		byte[] written = new byte[buffer.writerIndex() - startIndex];
+		buffer.slice(startIndex, written.length).readBytes(written);
+		buffer.writerIndex(startIndex);
+		deflater.reset();
+		deflating = new DeflaterOutputStream(new ByteBufferOutputStream(buffer), deflater, 4096);
+		deflating.write(written);
+	}
+
+	/**
+	 * ends the deflate stream, call after the last write
+	 */
+	public void finish() throws IOException {
+		if(deflating != null) {
+			deflating.finish();
+		}
+	}
+
+	public boolean isCompressed() {
+		return deflating != null;
+	}
+
+	/**
+	 * bytes written to this stream, before compression
+	 */
+	public long getInputLength() {
+		return deflating == null ? buffer.writerIndex() - startIndex : deflater.getBytesRead();
+	}
+
+	/**
+	 * bytes that went into the buffer
+	 */
+	public int getOutputLength() {
+		return buffer.writerIndex() - startIndex;
+	}
+}
@@ -0,0 +1,218 @@
+package com.github.jremoting.protocal;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.github.jremoting.core.ContentReference;
+import com.github.jremoting.core.Invoke;
+import com.github.jremoting.core.InvokeResult;
+import com.github.jremoting.core.Message;
+import com.github.jremoting.io.ByteBuffer;
+
+/**
+ * values that do not go through the serializer. byte[] and ByteBuffer values travel raw behind the
+ * serialized body, the body keeps TYPE_PREFIX + type name and the int length in their place.
+ * File and InputStream values are contents, sent behind the whole frame in pieces, the body keeps
+ * CONTENT_PREFIX + type name and the int transfer id. encode collects them before the head is written,
+ * since the v2 head announces the raw length, decode hands them out as the body refers to them.
+ */
+public class Attachments {
+
+	public static final String TYPE_PREFIX = "#";
+	public static final String CONTENT_PREFIX = "%";
+
+	public static final int NONE = 0;
+	public static final int RAW = 1;
+	public static final int CONTENT = 2;
+
+	private static final String BYTES_TYPE = byte[].class.getName();
+	private static final String BUFFER_TYPE = java.nio.ByteBuffer.class.getName();
+	private static final String FILE_TYPE = File.class.getName();
+	private static final String STREAM_TYPE = InputStream.class.getName();
+
+	//encode
+	private final boolean contentAllowed;
+	private final List<java.nio.ByteBuffer> parts = new ArrayList<java.nio.ByteBuffer>();
+	private final List<Object> contents = new ArrayList<Object>();
+	private final List<Integer> contentIds = new ArrayList<Integer>();
+	private int length;
+	private int nextPart;
+	private int nextContent;
+
+	//decode
+	private final ByteBuffer source;
+	private int offset;
+	private final int end;
+
+	private Attachments(boolean contentAllowed) {
+		this.contentAllowed = contentAllowed;
+		this.source = null;
+		this.end = 0;
+	}
+
+	/**
+	 * reads raw values from offset to the end of the frame
+	 */
+	public Attachments(ByteBuffer source, int offset, int end) {
+		this.contentAllowed = false;
+		this.source = source;
+		this.offset = offset;
+		this.end = end;
+	}
+
+	/**
+	 * the values of a request or result that skip the serializer, null if it has none.
+	 * contents only if the peer takes content pieces, they get their transfer ids from the session
+	 */
+	public static Attachments collect(Message msg, boolean contentAllowed, JRemotingSession session) {
+		Attachments attachments = new Attachments(contentAllowed && session != null);
+		if(msg instanceof Invoke) {
+			Invoke invoke = (Invoke)msg;
+			Object[] args = invoke.getArgs();
+			for (int i = 0; args != null && i < args.length; i++) {
+				attachments.add(attachments.kindOf(invoke.getParameterTypeNames()[i], args[i]), args[i], session);
+			}
+		}
+		else if(msg instanceof InvokeResult) {
+			Object result = ((InvokeResult)msg).getResult();
+			if(result != null) {
+				attachments.add(attachments.kindOf(typeName(result), result), result, session);
+			}
+		}
+		return attachments.parts.isEmpty() && attachments.contents.isEmpty() ? null : attachments;
+	}
+
+	/**
+	 * the declared type decides, so the receiver gets what its signature asks for
+	 */
+	public int kindOf(String typeName, Object value) {
+		if(BYTES_TYPE.equals(typeName)) {
+			return value instanceof byte[] ? RAW : NONE;
+		}
+		if(BUFFER_TYPE.equals(typeName)) {
+			return value instanceof java.nio.ByteBuffer ? RAW : NONE;
+		}
+		if(contentAllowed && FILE_TYPE.equals(typeName)) {
+			return value instanceof File ? CONTENT : NONE;
+		}
+		if(contentAllowed && STREAM_TYPE.equals(typeName)) {
+			return value instanceof InputStream ? CONTENT : NONE;
+		}
+		return NONE;
+	}
+
+	/**
+	 * the type to announce for a result value
+	 */
+	public static String typeName(Object value) {
+		if(value instanceof java.nio.ByteBuffer) {
+			return BUFFER_TYPE;
+		}
+		if(value instanceof InputStream) {
+			return STREAM_TYPE;
+		}
+		return value.getClass().getName();
+	}
+
+	public static String prefix(int kind) {
+		return kind == CONTENT ? CONTENT_PREFIX : TYPE_PREFIX;
+	}
+
+	/**
+	 * class of an announced type name, ClassLoader does not load array names
+	 */
+	public static Class<?> type(String typeName) {
+		if(BUFFER_TYPE.equals(typeName)) {
+			return java.nio.ByteBuffer.class;
+		}
+		if(FILE_TYPE.equals(typeName)) {
+			return File.class;
+		}
+		if(STREAM_TYPE.equals(typeName)) {
+			return InputStream.class;
+		}
+		return byte[].class;
+	}
+
+	private void add(int kind, Object value, JRemotingSession session) {
+		if(kind == RAW) {
+			java.nio.ByteBuffer part = value instanceof byte[] ? java.nio.ByteBuffer.wrap((byte[])value)
+					: ((java.nio.ByteBuffer)value).duplicate();
+			parts.add(part);
+			length += part.remaining();
+		}
+		else if(kind == CONTENT) {
+			contents.add(value);
+			contentIds.add(session.nextTransferId());
+		}
+	}
+
+	/**
+	 * what the body keeps in place of the next value of this kind, in the order collect found them:
+	 * the length of a raw value, the transfer id of a content
+	 */
+	public int next(int kind) {
+		if(kind == CONTENT) {
+			return contentIds.get(nextContent++);
+		}
+		return parts.get(nextPart++).remaining();
+	}
+
+	/**
+	 * for encoding the same message again
+	 */
+	public void rewind() {
+		nextPart = 0;
+		nextContent = 0;
+	}
+
+	public int getContentCount() {
+		return contents.size();
+	}
+
+	public boolean hasRaw() {
+		return !parts.isEmpty();
+	}
+
+	/**
+	 * total raw bytes behind the body
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	public void writeTo(ByteBuffer buffer) {
+		for (java.nio.ByteBuffer part : parts) {
+			buffer.writeBytes(part);
+		}
+	}
+
+	/**
+	 * after the frame is complete, contents are sent behind it
+	 */
+	public void writeContents(ByteBuffer buffer) {
+		for (int i = 0; i < contents.size(); i++) {
+			buffer.writeContent(contentIds.get(i), contents.get(i));
+		}
+	}
+
+	/**
+	 * one copy, from the frame into the value. the frame buffer is reused once decode returns,
+	 * so the provider cannot be handed a view of it
+	 */
+	public Object read(String typeName, int valueLength) {
+		if(valueLength < 0 || offset + valueLength > end) {
+			throw new IllegalStateException("attachment of " + valueLength + " bytes exceeds the frame");
+		}
+		byte[] bytes = new byte[valueLength];
+		source.slice(offset, valueLength).readBytes(bytes);
+		offset += valueLength;
+		return BUFFER_TYPE.equals(typeName) ? java.nio.ByteBuffer.wrap(bytes) : bytes;
+	}
+
+	public static ContentReference readContent(String typeName, int transferId) {
+		return new ContentReference(transferId, type(typeName));
+	}
+}
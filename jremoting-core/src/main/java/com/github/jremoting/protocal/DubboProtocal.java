@@ -2,6 +2,7 @@ package com.github.jremoting.protocal;
 
 import com.github.jremoting.core.Message;
 import com.github.jremoting.core.Protocal;
+import com.github.jremoting.core.ProtocalSession;
 import com.github.jremoting.core.ServiceRegistry;
 import com.github.jremoting.exception.ProtocalException;
 import com.github.jremoting.io.ByteBuffer;
@@ -22,13 +23,18 @@ public class DubboProtocal implements Protocal {
     protected static final int      SERIALIZATION_MASK = 0x1f;		  //00011111
 
 	@Override
-	public void encode(Message msg, ByteBuffer buffer) throws ProtocalException {
+	public ProtocalSession createSession() {
+		return null;
+	}
+
+	@Override
+	public void encode(Message msg, ByteBuffer buffer, ProtocalSession session) throws ProtocalException {
 		// TODO Auto-generated method stub
 		
 	}
 
 	@Override
-	public Message decode(ByteBuffer buffer) throws ProtocalException {
+	public Message decode(ByteBuffer buffer, ProtocalSession session) throws ProtocalException {
 		// TODO Auto-generated method stub
 		return null;
 	}
@@ -39,6 +45,11 @@ public class DubboProtocal implements Protocal {
 		return null;
 	}
 
+	@Override
+	public int getChunkSize(Message msg, ProtocalSession session) {
+		return 0;
+	}
+
 
 
 
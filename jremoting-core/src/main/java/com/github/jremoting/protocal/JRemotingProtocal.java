@@ -1,20 +1,37 @@
 package com.github.jremoting.protocal;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
+import com.github.jremoting.core.Callback;
+import com.github.jremoting.core.CallbackInvoke;
+import com.github.jremoting.core.CallbackReference;
+import com.github.jremoting.core.CallbackReleaseMessage;
+import com.github.jremoting.core.CancelMessage;
+import com.github.jremoting.core.StreamCreditMessage;
+import com.github.jremoting.core.ChunkMessage;
 import com.github.jremoting.core.HeartbeatMessage;
 import com.github.jremoting.core.Invoke;
 import com.github.jremoting.core.InvokeResult;
 import com.github.jremoting.core.Message;
 import com.github.jremoting.core.Protocal;
+import com.github.jremoting.core.ProtocalSession;
 import com.github.jremoting.core.Serializer;
+import com.github.jremoting.core.StreamResult;
 import com.github.jremoting.core.SerializerUtil;
 import com.github.jremoting.core.ServiceRegistry;
 import com.github.jremoting.exception.ProtocalException;
+import com.github.jremoting.exception.ServerBusyException;
 import com.github.jremoting.exception.ServerErrorException;
 import com.github.jremoting.io.ByteBuffer;
 import com.github.jremoting.io.ByteBufferInputStream;
 import com.github.jremoting.io.ByteBufferOutputStream;
+import com.github.jremoting.io.CompressingOutputStream;
 import com.github.jremoting.io.ObjectInput;
 import com.github.jremoting.io.ObjectOutput;
 import com.github.jremoting.util.Logger;
@@ -29,26 +46,96 @@ public class JRemotingProtocal implements Protocal {
 	
 	public static final short MAGIC = (short) 0xBABE; //1011101010111110
 	
+	public static final int VERSION_1 = 1;
+	/**
+	 * v2 head: 0xBA, version byte 2, flag, status, varint msgId, varint body length.
+	 * status bit STATUS_EXTENSIONS means extensions lead the body: tag byte, varint length, value,
+	 * ended by EXT_END. tags a reader does not know are skipped.
+	 */
+	public static final int VERSION_2 = 2;
+	
 	 // header length.
     protected static final int      HEAD_LENGTH      = 16;
+    protected static final int      MAGIC_HIGH_BYTE   = 0xBA;
     // message flag.
     protected static final int     FLAG_REQUEST       =  0x80; //10000000
 
     protected static final int     FLAG_TWOWAY        =  0x40; //01000000
 
     protected static final int     FLAG_EVENT     =  0x20;	  //00100000
+    //FLAG_EVENT | FLAG_REQUEST is a cancel of the request with the same id, older peers take it for a PONG.
+    //with STATUS_STREAM_CREDIT it grants the stream with the same id more elements instead,
+    //with STATUS_CALLBACK_RELEASE it releases the callback whose id is in the id field
+
+    //names in the body are ids of the connection's SymbolTable, see SymbolTable
+    protected static final int     FLAG_SYMBOLS     =  0x10;	  //00010000
 
-    protected static final int      SERIALIZATION_MASK = 0x1f;		  //00011111
+    //body after the head (and v2 extensions) is deflated
+    protected static final int     FLAG_COMPRESSED  =  0x08;	  //00001000
+
+    protected static final int      SERIALIZATION_MASK = 0x07;		  //00000111
     
     
     protected static final int      STATUS_ERROR = 50;
     protected static final int      STATUS_OK = 20;
+    //rejected by the provider before running, body is the error message
+    protected static final int      STATUS_BUSY = 100;
+    //request status, an int of millis the caller still waits follows the head and counts in the body length.
+    //only sent when v1 deadlines are enabled, older providers take any status but ok as an error
+    protected static final int      STATUS_DEADLINE = 21;
+    //response status, one element of a stream, the body is like an ok result
+    protected static final int      STATUS_STREAM = 22;
+    //response status, the stream ended, no body
+    protected static final int      STATUS_STREAM_END = 23;
+    //request status, a provider calls a callback argument, the body starts with the int callbackId
+    protected static final int      STATUS_CALLBACK = 24;
+    //v2 only, a piece of a split frame, the id is the transfer id and the body the piece
+    protected static final int      STATUS_CHUNK = 25;
+    protected static final int      STATUS_CHUNK_END = 26;
+    //v2 only, a piece of a File or InputStream content, ABORT ends it unfinished
+    protected static final int      STATUS_CONTENT = 27;
+    protected static final int      STATUS_CONTENT_END = 28;
+    protected static final int      STATUS_CONTENT_ABORT = 29;
+    //request event, the caller of a stream took elements, the int count of them is the body.
+    //only sent to providers that streamed, so only to peers that know it
+    protected static final int      STATUS_STREAM_CREDIT = 30;
+    //request event, a provider dropped a callback proxy, the int count of references it got is the body.
+    //only sent to consumers that exported callbacks, so only to peers that know it
+    protected static final int      STATUS_CALLBACK_RELEASE = 31;
+    //v2 only
+    protected static final int      STATUS_EXTENSIONS = 0x80;
+    protected static final int      STATUS_MASK = 0x7f;
+    
+    protected static final int      EXT_END = 0;
+    //varint millis the caller still waits
+    protected static final int      EXT_DEADLINE = 1;
+    //varint length of the raw byte[] and ByteBuffer values at the end of the body, see Attachments
+    protected static final int      EXT_ATTACHMENTS = 2;
+    //varint count of the File and InputStream contents sent behind the frame
+    protected static final int      EXT_CONTENTS = 3;
     
     private static final String NULL = "NULL";
+    //type name prefix of a callback argument, its int callbackId follows instead of the object
+    private static final String CALLBACK_TYPE_PREFIX = "@";
+    private static final long INCOMPLETE_VARINT = Long.MIN_VALUE;
     private final ServiceRegistry registry;
 	private static Class<?>[] EMPTY_TYPE_ARRAY = new Class<?>[0];
 
 	private final Serializer[] serializers;
+	//decoding symbols and v2 is always supported, these only decide what encode sends.
+	//symbols only go in v2 frames, a v1 peer may predate them
+	private boolean symbolTableEnabled = true;
+	private int version = VERSION_1;
+	//bodies longer than this are compressed, 0 disables compression
+	private int compressionThreshold = 0;
+	//a body that does not get below this part of its size turns compression off for a while
+	private double compressionRatioLimit = 0.9;
+	//v2 frames longer than this are split, and File and InputStream values sent as contents. 0 disables both
+	private int chunkSize = 0;
+	//bodies of at least this many bytes are deserialized by the thread that takes the message, 0 disables it
+	private int lazyDecodeThreshold = 0;
+	//v2 frames always carry the deadline, v1 frames only when this is on
+	private boolean v1DeadlineEnabled = false;
 	
 	public JRemotingProtocal(Serializer[] serializers, ServiceRegistry registry) {
 		this.serializers = SerializerUtil.reindex(serializers);
@@ -56,124 +143,497 @@ public class JRemotingProtocal implements Protocal {
 	}
 	
 	@Override
-	public void encode(Message msg, ByteBuffer buffer) throws ProtocalException {
+	public ProtocalSession createSession() {
+		return new JRemotingSession();
+	}
+	
+	@Override
+	public void encode(Message msg, ByteBuffer buffer, ProtocalSession session) throws ProtocalException {
+		if(msg instanceof ChunkMessage) {
+			encodeChunkHead((ChunkMessage)msg, buffer);
+			return;
+		}
+		int frameStart = buffer.writerIndex();
+		JRemotingSession jremotingSession = session instanceof JRemotingSession ? (JRemotingSession)session : null;
+		int chunkSize = getChunkSize(msg, session);
+		Attachments attachments = frameVersion(jremotingSession) == VERSION_2
+				? Attachments.collect(msg, chunkSize > 0, jremotingSession) : null;
+		int symbolCount = jremotingSession == null ? 0 : jremotingSession.getSymbols().getOutboundSize();
 		
+		//the peer reads names on the io thread in order, it can only defer bodies that have none of the table.
+		//the size is not known before encoding, so with lazy decoding every body the peer may defer goes without
+		boolean lazyBody = lazyDecodeThreshold > 0 && (attachments == null || attachments.getContentCount() == 0)
+				&& isLazyKind(msg);
+		boolean useSymbols = symbolTableEnabled && frameVersion(jremotingSession) == VERSION_2 && !lazyBody;
+		int frameLength = encodeFrame(msg, buffer, jremotingSession, attachments, useSymbols);
+		//a split frame is decoded after frames sent behind it, they must not use names it defines
+		boolean splitDefinesSymbols = chunkSize > 0 && frameLength > chunkSize
+				&& jremotingSession.getSymbols().getOutboundSize() > symbolCount;
+		if(splitDefinesSymbols) {
+			jremotingSession.getSymbols().rollback();
+			jremotingSession.rollbackCallbacks();
+			buffer.writerIndex(frameStart);
+			if(attachments != null) {
+				attachments.rewind();
+			}
+			encodeFrame(msg, buffer, jremotingSession, attachments, false);
+		}
+		if(attachments != null) {
+			attachments.writeContents(buffer);
+		}
+	}
+	
+	/**
+	 * requests and results decode can hand over undecoded, callbacks and stream elements are always decoded
+	 */
+	private static boolean isLazyKind(Message msg) {
+		return (msg instanceof Invoke && !(msg instanceof CallbackInvoke))
+				|| (msg instanceof InvokeResult && !(msg instanceof StreamResult));
+	}
+	
+	/**
+	 * the v2 head of a piece, the piece itself is written by the caller
+	 */
+	private void encodeChunkHead(ChunkMessage chunk, ByteBuffer buffer) {
+		int status;
+		if(chunk.isContent()) {
+			status = chunk.isAborted() ? STATUS_CONTENT_ABORT : (chunk.isLast() ? STATUS_CONTENT_END : STATUS_CONTENT);
+		}
+		else {
+			status = chunk.isLast() ? STATUS_CHUNK_END : STATUS_CHUNK;
+		}
+		buffer.writeByte(MAGIC_HIGH_BYTE);
+		buffer.writeByte(VERSION_2);
+		buffer.writeByte(0);
+		buffer.writeByte(status);
+		writeVarint(buffer, chunk.getId());
+		writeVarint(buffer, chunk.getLength());
+	}
+	
+	//answer a peer in the newest version it spoke, older peers keep getting v1
+	private int frameVersion(JRemotingSession session) {
+		return session == null ? version : Math.max(version, session.getPeerVersion());
+	}
+	
+	/**
+	 * returns the length of the frame, raw attachments included
+	 */
+	private int encodeFrame(Message msg, ByteBuffer buffer, JRemotingSession jremotingSession,
+			Attachments attachments, boolean useSymbols) throws ProtocalException {
+		int frameStart = buffer.writerIndex();
+		SymbolTable symbols = null;
+		if(jremotingSession != null) {
+			jremotingSession.markCallbacks();
+		}
 		try {
+			boolean isCancelMessage = msg instanceof CancelMessage;
+			boolean isCreditMessage = msg instanceof StreamCreditMessage;
+			boolean isReleaseMessage = msg instanceof CallbackReleaseMessage;
 			boolean isHeartbeatMessage = msg instanceof HeartbeatMessage;
+			boolean isEvent = isHeartbeatMessage || isCancelMessage || isCreditMessage || isReleaseMessage;
 			boolean isTwoWay = msg.isTwoWay();
-			boolean isRequest = msg instanceof Invoke;
-			boolean isErrorMsg = (msg instanceof InvokeResult) && ((InvokeResult)msg).getResult() instanceof Throwable;
-			int serializeId = isHeartbeatMessage ? 0 : msg.getSerializer().getId();
+			boolean isRequest = msg instanceof Invoke || isCancelMessage || isCreditMessage || isReleaseMessage;
+			boolean isStreamMsg = msg instanceof StreamResult;
+			boolean isStreamEnd = isStreamMsg && ((StreamResult)msg).isEnd();
+			boolean isErrorMsg = !isStreamMsg && (msg instanceof InvokeResult) && ((InvokeResult)msg).getResult() instanceof Throwable;
+			int serializeId = isEvent ? 0 : msg.getSerializer().getId();
+			if(useSymbols && !isEvent && !isErrorMsg && jremotingSession != null) {
+				symbols = jremotingSession.getSymbols();
+				symbols.mark();
+			}
+			int frameVersion = frameVersion(jremotingSession);
 			
 			int flag = (isRequest ? FLAG_REQUEST : 0)
 					| (isTwoWay ? FLAG_TWOWAY : 0) 
-					| (isHeartbeatMessage ? FLAG_EVENT : 0)
+					| (isEvent ? FLAG_EVENT : 0)
+					| (symbols != null ? FLAG_SYMBOLS : 0)
 					| serializeId;
 			
-			int status = isErrorMsg ? STATUS_ERROR : STATUS_OK;
-			
-			//encode head
-			buffer.writeShort(MAGIC);
-			buffer.writeByte(flag);
-			buffer.writeByte(status);
-			buffer.writeLong(msg.getId());
-			
-			int bodyLengthOffset = buffer.writerIndex();
-			buffer.writeInt(0);
-			
-			if(isHeartbeatMessage) {
-				return;
+			boolean isBusyMsg = isErrorMsg && ((InvokeResult)msg).getResult() instanceof ServerBusyException;
+			int status = isBusyMsg ? STATUS_BUSY : (isErrorMsg ? STATUS_ERROR : STATUS_OK);
+			if(msg instanceof CallbackInvoke) {
+				status = STATUS_CALLBACK;
 			}
-			
-			Serializer serializer = serializers[msg.getSerializer().getId()];
-			
-			ObjectOutput output = serializer.createObjectOutput(new ByteBufferOutputStream(buffer));
-			
-			if(isErrorMsg) {
-				InvokeResult errorResult = (InvokeResult)msg;
-				Throwable error = (Throwable)errorResult.getResult();
-				output.writeString(error.getMessage());
+			if(isStreamMsg) {
+				status = isStreamEnd ? STATUS_STREAM_END : STATUS_STREAM;
 			}
-			else if(isRequest) {
-				Invoke invoke = (Invoke)msg;
-				encodeRequestBody(invoke, output);
+			if(isCreditMessage) {
+				status = STATUS_STREAM_CREDIT;
 			}
-			else {
-				InvokeResult invokeResult = (InvokeResult)msg;
-				if(invokeResult.getResult() == null) {
-					output.writeString(NULL);
+			if(isReleaseMessage) {
+				status = STATUS_CALLBACK_RELEASE;
+			}
+			boolean hasDeadline = msg instanceof Invoke && ((Invoke)msg).hasDeadline();
+			//relative, so client and server clocks need not agree
+			int remaining = hasDeadline ? (int)Math.max(0, Math.min(Integer.MAX_VALUE, ((Invoke)msg).getRemainingMillis())) : 0;
+			
+			int bodyLengthOffset;
+			int bodyStart;
+			int lengthWidth = jremotingSession == null ? 1 : jremotingSession.getLengthWidth();
+			if(frameVersion == VERSION_2) {
+				buffer.writeByte(MAGIC_HIGH_BYTE);
+				buffer.writeByte(VERSION_2);
+				buffer.writeByte(flag);
+				boolean hasContents = attachments != null && attachments.getContentCount() > 0;
+				boolean hasExtensions = hasDeadline || hasContents || (attachments != null && attachments.hasRaw());
+				buffer.writeByte(status | (hasExtensions ? STATUS_EXTENSIONS : 0));
+				writeVarint(buffer, msg.getId());
+				
+				bodyLengthOffset = buffer.writerIndex();
+				for (int i = 0; i < lengthWidth; i++) {
+					buffer.writeByte(0);
+				}
+				bodyStart = buffer.writerIndex();
+				if(hasDeadline) {
+					buffer.writeByte(EXT_DEADLINE);
+					writeVarint(buffer, varintSize(remaining));
+					writeVarint(buffer, remaining);
+				}
+				if(attachments != null && attachments.hasRaw()) {
+					buffer.writeByte(EXT_ATTACHMENTS);
+					writeVarint(buffer, varintSize(attachments.getLength()));
+					writeVarint(buffer, attachments.getLength());
 				}
-				else {
-					output.writeString(invokeResult.getResult().getClass().getName());
-					output.writeObject(invokeResult.getResult());
+				if(hasContents) {
+					buffer.writeByte(EXT_CONTENTS);
+					writeVarint(buffer, varintSize(attachments.getContentCount()));
+					writeVarint(buffer, attachments.getContentCount());
+				}
+				if(hasExtensions) {
+					buffer.writeByte(EXT_END);
+				}
+			}
+			else {
+				//encode head
+				buffer.writeShort(MAGIC);
+				buffer.writeByte(flag);
+				hasDeadline = hasDeadline && v1DeadlineEnabled;
+				buffer.writeByte(hasDeadline ? STATUS_DEADLINE : status);
+				buffer.writeLong(msg.getId());
+				
+				bodyLengthOffset = buffer.writerIndex();
+				buffer.writeInt(0);
+				bodyStart = buffer.writerIndex();
+				
+				if(hasDeadline) {
+					buffer.writeInt(remaining);
 				}
 			}
 			
-			output.close();
+			if(isCreditMessage) {
+				buffer.writeInt(((StreamCreditMessage)msg).getCredit());
+			}
+			if(isReleaseMessage) {
+				buffer.writeInt(((CallbackReleaseMessage)msg).getReferences());
+			}
+			if(!isEvent && !isStreamEnd) {
+				if(encodeBody(msg, buffer, isRequest, isErrorMsg, symbols, jremotingSession, attachments)) {
+					//the flag follows the two magic bytes in both versions
+					int savedWriterIndex = buffer.writerIndex();
+					buffer.writerIndex(frameStart + 2);
+					buffer.writeByte(flag | FLAG_COMPRESSED);
+					buffer.writerIndex(savedWriterIndex);
+				}
+			}
 			
 			//write body length
-			int bodyLength = buffer.writerIndex() - bodyLengthOffset - 4;
-			int savedWriterIndex = buffer.writerIndex();
-			buffer.writerIndex(bodyLengthOffset);
-			buffer.writeInt(bodyLength);
-			buffer.writerIndex(savedWriterIndex);
+			int bodyLength = buffer.writerIndex() - bodyStart;
+			int attachmentsLength = attachments == null ? 0 : attachments.getLength();
+			if(frameVersion == VERSION_2) {
+				int neededWidth = writeVarintLength(buffer, bodyLengthOffset, lengthWidth, bodyLength, attachmentsLength);
+				if(jremotingSession != null) {
+					jremotingSession.setLengthWidth(neededWidth);
+				}
+			}
+			else {
+				int savedWriterIndex = buffer.writerIndex();
+				buffer.writerIndex(bodyLengthOffset);
+				buffer.writeInt(bodyLength);
+				buffer.writerIndex(savedWriterIndex);
+			}
+			int frameLength = buffer.writerIndex() - frameStart + attachmentsLength;
+			if(attachments != null) {
+				attachments.writeTo(buffer);
+			}
+			return frameLength;
 		} catch (Exception e) {
 			LOGGER.error(e.getMessage(), e);
+			//the peer never sees this frame, nor the symbols it defined
+			if(symbols != null) {
+				symbols.rollback();
+			}
+			if(jremotingSession != null) {
+				jremotingSession.rollbackCallbacks();
+			}
+			buffer.writerIndex(frameStart);
 			throw new ProtocalException("encode msg failed",e, msg.getId());
 		}
+	}
 	
+	/**
+	 * true if the body got compressed
+	 */
+	private boolean encodeBody(Message msg, ByteBuffer buffer, boolean isRequest, boolean isErrorMsg,
+			SymbolTable symbols, JRemotingSession session, Attachments attachments) throws IOException {
+			
+		Serializer serializer = serializers[msg.getSerializer().getId()];
+		
+		CompressingOutputStream compressing = null;
+		OutputStream out;
+		if(compressionThreshold > 0 && session != null && session.shouldCompress()) {
+			compressing = new CompressingOutputStream(buffer, compressionThreshold, session.getDeflater());
+			out = compressing;
+		}
+		else {
+			out = new ByteBufferOutputStream(buffer);
+		}
+		ObjectOutput output = serializer.createObjectOutput(out);
 		
+		if(isErrorMsg) {
+			InvokeResult errorResult = (InvokeResult)msg;
+			Throwable error = (Throwable)errorResult.getResult();
+			output.writeString(error.getMessage());
+		}
+		else if(isRequest) {
+			Invoke invoke = (Invoke)msg;
+			if(invoke instanceof CallbackInvoke) {
+				output.writeInt(((CallbackInvoke)invoke).getCallbackId());
+			}
+			encodeRequestBody(invoke, output, symbols, session, attachments);
+		}
+		else {
+			InvokeResult invokeResult = (InvokeResult)msg;
+			Object result = invokeResult.getResult();
+			if(result == null) {
+				writeName(output, symbols, NULL);
+			}
+			else if(attachments != null && attachments.kindOf(Attachments.typeName(result), result) != Attachments.NONE) {
+				int kind = attachments.kindOf(Attachments.typeName(result), result);
+				writeName(output, symbols, Attachments.prefix(kind) + Attachments.typeName(result));
+				output.writeInt(attachments.next(kind));
+			}
+			else {
+				writeName(output, symbols, invokeResult.getResult().getClass().getName());
+				output.writeObject(invokeResult.getResult());
+			}
+		}
+		
+		output.close();
+		
+		if(compressing == null) {
+			return false;
+		}
+		compressing.finish();
+		if(compressing.isCompressed()) {
+			session.compressed(compressing.getInputLength(), compressing.getOutputLength(), compressionRatioLimit);
+		}
+		return compressing.isCompressed();
 	}
 	
-	private void encodeRequestBody(Invoke invoke, ObjectOutput output) {
+	/**
+	 * fill the bytes reserved at offset with the varint length of the body plus the trailing bytes
+	 * still to come, moving the body if the varint needs another size. returns that size, the session
+	 * reserves it for the next frame
+	 */
+	private int writeVarintLength(ByteBuffer buffer, int offset, int reserved, int bodyLength, int trailing) {
+		int needed = varintSize(bodyLength + trailing);
+		int savedWriterIndex = buffer.writerIndex();
+		if(needed == reserved) {
+			buffer.writerIndex(offset);
+			writeVarint(buffer, bodyLength + trailing);
+			buffer.writerIndex(savedWriterIndex);
+			return needed;
+		}
+		
+		byte[] body = new byte[bodyLength];
+		buffer.slice(offset + reserved, bodyLength).readBytes(body);
+		buffer.writerIndex(offset);
+		writeVarint(buffer, bodyLength + trailing);
+		buffer.writeBytes(body);
+		return needed;
+	}
+	
+	private static int varintSize(long value) {
+		int size = 1;
+		while ((value & ~0x7FL) != 0) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+	
+	private static void writeVarint(ByteBuffer buffer, long value) {
+		while ((value & ~0x7FL) != 0) {
+			buffer.writeByte((int)((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.writeByte((int)value);
+	}
+	
+	/**
+	 * INCOMPLETE_VARINT if the buffer ends inside the varint
+	 */
+	private static long readVarint(ByteBuffer buffer) throws ProtocalException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			if(!buffer.readable()) {
+				return INCOMPLETE_VARINT;
+			}
+			byte b = buffer.readByte();
+			value |= (long)(b & 0x7F) << shift;
+			if(b >= 0) {
+				return value;
+			}
+		}
+		throw new ProtocalException("malformed varint", null, 0);
+	}
+	
+	private void writeName(ObjectOutput output, SymbolTable symbols, String name) {
+		if(symbols == null) {
+			output.writeString(name);
+		}
+		else {
+			symbols.write(output, name);
+		}
+	}
+	
+	private SymbolTable.Symbol readName(ObjectInput input, SymbolTable symbols) {
+		if(symbols == null) {
+			return new SymbolTable.Symbol(input.readString());
+		}
+		return symbols.read(input);
+	}
+	
+	private void encodeRequestBody(Invoke invoke, ObjectOutput output, SymbolTable symbols, JRemotingSession session,
+			Attachments attachments) {
 		
 		int argLength = invoke.getArgs() == null ? 0 : invoke.getArgs().length;
-		output.writeString(invoke.getInterfaceName());
-		output.writeString(invoke.getVersion());
-		output.writeString(invoke.getMethodName());
+		writeName(output, symbols, invoke.getInterfaceName());
+		writeName(output, symbols, invoke.getVersion());
+		writeName(output, symbols, invoke.getMethodName());
 		output.writeInt(argLength);
 
 		if(argLength == 0) {
 			return;
 		}
 		
+		Class<?>[] parameterTypes = invoke.getParameterTypes();
 		for (int i= 0; i <  argLength; i++) {
-			output.writeString(invoke.getParameterTypeNames()[i]);
-			output.writeObject(invoke.getArgs()[i]);
+			Object arg = invoke.getArgs()[i];
+			if(arg != null && session != null && parameterTypes != null
+					&& parameterTypes[i].isAnnotationPresent(Callback.class)) {
+				writeName(output, symbols, CALLBACK_TYPE_PREFIX + invoke.getParameterTypeNames()[i]);
+				output.writeInt(session.exportCallback(arg));
+				continue;
+			}
+			int kind = attachments == null ? Attachments.NONE : attachments.kindOf(invoke.getParameterTypeNames()[i], arg);
+			if(kind != Attachments.NONE) {
+				writeName(output, symbols, Attachments.prefix(kind) + invoke.getParameterTypeNames()[i]);
+				output.writeInt(attachments.next(kind));
+				continue;
+			}
+			writeName(output, symbols, invoke.getParameterTypeNames()[i]);
+			output.writeObject(arg);
 		}
 	}
 
 
 	@Override
-	public Message decode(ByteBuffer buffer) throws ProtocalException {
-		if(buffer.readableBytes() < HEAD_LENGTH) {
+	public Message decode(ByteBuffer buffer, ProtocalSession session) throws ProtocalException {
+		if(buffer.readableBytes() < 4) {
 			return Message.NEED_MORE;
 		}
 		buffer.markReaderIndex();
 		
 		short magic = buffer.readShort();
-		if(magic != MAGIC) {
+		int frameVersion;
+		if(magic == MAGIC) {
+			frameVersion = VERSION_1;
+			if(buffer.readableBytes() < HEAD_LENGTH - 2) {
+				buffer.resetReaderIndex();
+				return Message.NEED_MORE;
+			}
+		}
+		else if(((magic >> 8) & 0xff) == MAGIC_HIGH_BYTE && (magic & 0xff) == VERSION_2) {
+			frameVersion = VERSION_2;
+		}
+		else {
 			buffer.resetReaderIndex();
 			return null;
 		}
 		
 		int flag = buffer.readByte();
-		int status = buffer.readByte();
-		long msgId = buffer.readLong();
-		int bodyLength = buffer.readInt();
+		int status = buffer.readByte() & 0xff;
+		long msgId;
+		int bodyLength;
+		if(frameVersion == VERSION_2) {
+			msgId = readVarint(buffer);
+			long varintLength = msgId == INCOMPLETE_VARINT ? INCOMPLETE_VARINT : readVarint(buffer);
+			if(varintLength == INCOMPLETE_VARINT) {
+				buffer.resetReaderIndex();
+				return Message.NEED_MORE;
+			}
+			if(varintLength < 0 || varintLength > Integer.MAX_VALUE) {
+				throw new ProtocalException("body length " + varintLength + " too large", null, msgId);
+			}
+			bodyLength = (int)varintLength;
+		}
+		else {
+			msgId = buffer.readLong();
+			bodyLength = buffer.readInt();
+		}
 		
 		if(buffer.readableBytes() < bodyLength) {
 			buffer.resetReaderIndex();
 			return Message.NEED_MORE;
 		}
+		if(session instanceof JRemotingSession) {
+			((JRemotingSession)session).setPeerVersion(frameVersion);
+		}
+		int frameEnd = buffer.readerIndex() + bodyLength;
+		
+		boolean hasExtensions = frameVersion == VERSION_2 && (status & STATUS_EXTENSIONS) > 0;
+		if(frameVersion == VERSION_2) {
+			status &= STATUS_MASK;
+		}
+		
+		if(frameVersion == VERSION_2 && status >= STATUS_CHUNK && status <= STATUS_CONTENT_ABORT) {
+			boolean isContent = status >= STATUS_CONTENT;
+			boolean isLast = status == STATUS_CHUNK_END || status >= STATUS_CONTENT_END;
+			ChunkMessage chunk = new ChunkMessage(msgId, isContent, isLast, status == STATUS_CONTENT_ABORT, bodyLength);
+			chunk.setPiece(buffer.slice(buffer.readerIndex(), bodyLength));
+			buffer.readerIndex(frameEnd);
+			return chunk;
+		}
 		
 		boolean isHeartbeat = (flag & FLAG_EVENT) > 0;	
 		boolean isRequest = (flag & FLAG_REQUEST) > 0;
 		boolean isTwoWay = (flag & FLAG_TWOWAY) > 0 ;
+		boolean hasSymbols = (flag & FLAG_SYMBOLS) > 0;
+		boolean isCompressed = (flag & FLAG_COMPRESSED) > 0;
 		int serializerId = (flag & SERIALIZATION_MASK);
-		boolean isErrorMsg = (status != STATUS_OK);
+		boolean isStreamMsg = !isRequest && (status == STATUS_STREAM || status == STATUS_STREAM_END);
+		boolean isErrorMsg = !isRequest && !isStreamMsg && (status != STATUS_OK);
 		
 		if (isHeartbeat) {
+			if(isRequest && status == STATUS_STREAM_CREDIT) {
+				int credit = buffer.readInt();
+				buffer.readerIndex(frameEnd);
+				return new StreamCreditMessage(msgId, credit);
+			}
+			if(isRequest && status == STATUS_CALLBACK_RELEASE) {
+				CallbackReleaseMessage release = new CallbackReleaseMessage((int)msgId, buffer.readInt());
+				buffer.readerIndex(frameEnd);
+				//like the targets of callback invokes, the exported callbacks are resolved here
+				if(session instanceof JRemotingSession) {
+					((JRemotingSession)session).releaseCallback(release.getCallbackId(), release.getReferences());
+				}
+				return release;
+			}
+			buffer.readerIndex(frameEnd);
+			if (isRequest) {
+				return new CancelMessage(msgId);
+			}
 			if (isTwoWay) {
 				return HeartbeatMessage.PING;
 			} else {
@@ -182,30 +642,106 @@ public class JRemotingProtocal implements Protocal {
 		}
 		
 		try {
+			SymbolTable symbols = null;
+			if(hasSymbols) {
+				if(!(session instanceof JRemotingSession)) {
+					throw new IllegalStateException("msg uses symbols but the connection has no symbol table");
+				}
+				symbols = ((JRemotingSession)session).getSymbols();
+			}
+			long remainingMillis = -1;
+			//-1 without raw attachments
+			int attachmentsLength = -1;
+			int contentCount = 0;
+			if(frameVersion == VERSION_1 && isRequest && status == STATUS_DEADLINE) {
+				remainingMillis = buffer.readInt();
+			}
+			else if(hasExtensions) {
+				int tag;
+				while ((tag = buffer.readByte()) != EXT_END) {
+					int length = (int)readVarint(buffer);
+					if(tag == EXT_DEADLINE) {
+						remainingMillis = readVarint(buffer);
+					}
+					else if(tag == EXT_ATTACHMENTS) {
+						attachmentsLength = (int)readVarint(buffer);
+					}
+					else if(tag == EXT_CONTENTS) {
+						contentCount = (int)readVarint(buffer);
+					}
+					else {
+						buffer.skipBytes(length);
+					}
+				}
+			}
+			long deadline = 0;
+			if(remainingMillis >= 0) {
+				//the queueing time on this side counts against the deadline from now on
+				deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(remainingMillis);
+			}
+			Attachments attachments = null;
+			bodyLength = frameEnd - buffer.readerIndex();
+			if(attachmentsLength >= 0) {
+				bodyLength -= attachmentsLength;
+				if(bodyLength < 0) {
+					throw new IllegalStateException("attachments of " + attachmentsLength + " bytes exceed the frame");
+				}
+				attachments = new Attachments(buffer, frameEnd - attachmentsLength, frameEnd);
+			}
+			
+			if(status == STATUS_STREAM_END) {
+				return new StreamResult(null, msgId, serializers[serializerId], true);
+			}
+			
 			//decode body
 			Serializer serializer = serializers[serializerId];	
-			ObjectInput input = serializer.createObjectInput(new ByteBufferInputStream(buffer, bodyLength));
+			Inflater inflater = null;
+			if(isCompressed) {
+				inflater = session instanceof JRemotingSession ? ((JRemotingSession)session).getInflater() : new Inflater();
+				inflater.reset();
+			}
+			
+			//symbols have to be read in order and contents are matched on the io thread,
+			//other bodies can wait for the thread that takes them
+			if(lazyDecodeThreshold > 0 && bodyLength >= lazyDecodeThreshold && symbols == null && contentCount == 0
+					&& (isRequest ? status != STATUS_CALLBACK : !isStreamMsg && !isErrorMsg)) {
+				ByteBuffer frame = buffer.copy(buffer.readerIndex(), frameEnd - buffer.readerIndex());
+				if(!isRequest) {
+					return new LazyInvokeResult(this, frame, bodyLength, isCompressed, msgId, serializer);
+				}
+				ObjectInput input = openBody(frame, bodyLength, inflater, serializer);
+				String interfaceName = readName(input, null).getName();
+				String version =  readName(input, null).getName();
+				String methodName =  readName(input, null).getName();
+				//not closed, some inputs check on close that the body was read to its end
+				frame.readerIndex(0);
+				LazyInvoke invoke = new LazyInvoke(this, frame, bodyLength, isCompressed, msgId, isTwoWay,
+						interfaceName, version, methodName, serializer);
+				invoke.setDeadline(deadline);
+				return invoke;
+			}
+			
+			ObjectInput input = openBody(buffer, bodyLength, inflater, serializer);
 			Message msg = null;
-			if(isErrorMsg) {
+			if(status == STATUS_BUSY) {
+				msg = new InvokeResult(new ServerBusyException(input.readString()), msgId, null);
+			}
+			else if(isErrorMsg) {
 				String errorMsg = input.readString();
 				msg =   new InvokeResult(new ServerErrorException(errorMsg), msgId, null);
 			}
 			else if(isRequest) {
-				msg =  decodeRequestBody(msgId,serializer ,input);
+				int callbackId = status == STATUS_CALLBACK ? input.readInt() : -1;
+				Invoke invoke = decodeRequestBody(msgId,serializer ,input, symbols, attachments, callbackId, isTwoWay);
+				if(invoke instanceof CallbackInvoke && session instanceof JRemotingSession) {
+					invoke.setTarget(((JRemotingSession)session).getCallback(callbackId));
+				}
+				invoke.setDeadline(deadline);
+				msg = invoke;
 			}
 			else {
-				Object result = null;
-				String resultClassName = input.readString();
-				if(!NULL.equals(resultClassName)) {
-					Class<?> resultClass = ReflectionUtil.findClass(resultClassName);
-					//generic invoke result will use HashMap decode
-					if(resultClass == null) {
-						resultClass = HashMap.class;
-					}
-				    result = input.readObject(resultClass);
-				}
-				
-				msg= new InvokeResult(result, msgId, serializer);
+				Object result = decodeResultBody(input, symbols, attachments);
+				msg = isStreamMsg ? new StreamResult(result, msgId, serializer, false) : new InvokeResult(result, msgId, serializer);
 			}
 			input.close();
 			return msg;
@@ -215,42 +751,258 @@ public class JRemotingProtocal implements Protocal {
 			LOGGER.error(e.getMessage(), e);
 			throw new ProtocalException("decode msg  failed!" ,e , msgId);
 		}
+		finally {
+			//skip what the serializer left unread, or the rest of a broken body
+			buffer.readerIndex(frameEnd);
+		}
 	}
 	
 
 	
+	private ObjectInput openBody(ByteBuffer buffer, int bodyLength, Inflater inflater, Serializer serializer) {
+		InputStream in = new ByteBufferInputStream(buffer, bodyLength);
+		if(inflater != null) {
+			in = new InflaterInputStream(in, inflater);
+		}
+		return serializer.createObjectInput(in);
+	}
+	
+	/**
+	 * the rest of a {@link LazyInvoke}, on the thread that asks for its arguments. frame starts at the body
+	 */
+	Invoke decodeLazyRequest(ByteBuffer frame, int bodyLength, boolean compressed, Serializer serializer,
+			long msgId) throws ProtocalException {
+		//the io thread keeps the connection's inflater
+		Inflater inflater = compressed ? new Inflater() : null;
+		try {
+			ObjectInput input = openBody(frame, bodyLength, inflater, serializer);
+			Attachments attachments = new Attachments(frame, bodyLength, frame.writerIndex());
+			Invoke invoke = decodeRequestBody(msgId, serializer, input, null, attachments, -1, true);
+			input.close();
+			return invoke;
+		} catch (Exception e) {
+			LOGGER.error(e.getMessage(), e);
+			throw new ProtocalException("decode msg  failed!" ,e , msgId);
+		}
+		finally {
+			if(inflater != null) {
+				inflater.end();
+			}
+		}
+	}
+	
+	/**
+	 * the body of a {@link LazyInvokeResult}, on the thread that asks for the result
+	 */
+	Object decodeLazyResult(ByteBuffer frame, int bodyLength, boolean compressed, Serializer serializer,
+			long msgId) throws ProtocalException {
+		Inflater inflater = compressed ? new Inflater() : null;
+		try {
+			ObjectInput input = openBody(frame, bodyLength, inflater, serializer);
+			Object result = decodeResultBody(input, null, new Attachments(frame, bodyLength, frame.writerIndex()));
+			input.close();
+			return result;
+		} catch (Exception e) {
+			LOGGER.error(e.getMessage(), e);
+			throw new ProtocalException("decode msg  failed!" ,e , msgId);
+		}
+		finally {
+			if(inflater != null) {
+				inflater.end();
+			}
+		}
+	}
+	
+	private Object decodeResultBody(ObjectInput input, SymbolTable symbols, Attachments attachments) throws ClassNotFoundException {
+		SymbolTable.Symbol resultClassName = readName(input, symbols);
+		if(resultClassName.getName().startsWith(Attachments.TYPE_PREFIX)) {
+			return readAttachment(input, resultClassName.getName(), attachments);
+		}
+		if(resultClassName.getName().startsWith(Attachments.CONTENT_PREFIX)) {
+			return Attachments.readContent(resultClassName.getName().substring(Attachments.CONTENT_PREFIX.length()), input.readInt());
+		}
+		if(NULL.equals(resultClassName.getName())) {
+			return null;
+		}
+		Class<?> resultClass = resultClassName.getType();
+		//generic invoke result will use HashMap decode
+		if(resultClass == null) {
+			resultClass = HashMap.class;
+		}
+		return input.readObject(resultClass);
+	}
 
-	private Invoke decodeRequestBody(long msgId, Serializer serializer,ObjectInput input) throws ClassNotFoundException {
+	/**
+	 * callbackId is -1 for a plain invoke
+	 */
+	private Invoke decodeRequestBody(long msgId, Serializer serializer,ObjectInput input, SymbolTable symbols,
+			Attachments attachments, int callbackId, boolean isTwoWay) throws ClassNotFoundException {
 		
-		String interfaceName = input.readString();
-		String version =  input.readString();
-		String methodName =  input.readString();
+		String interfaceName = readName(input, symbols).getName();
+		String version =  readName(input, symbols).getName();
+		String methodName =  readName(input, symbols).getName();
 		int argsLength = input.readInt();
 		
+		Class<?>[] parameterTypes = EMPTY_TYPE_ARRAY;
+		Object[]  args = null;
 		
-		if(argsLength == 0) {
-			Invoke invoke = new Invoke(interfaceName, version, methodName,serializer, null, EMPTY_TYPE_ARRAY);
-			invoke.setId(msgId);
-			return invoke;
+		if(argsLength > 0) {
+			parameterTypes = new Class[argsLength];
+			args = new Object[argsLength];
 		}
 		
-		Class<?>[] parameterTypes = new Class[argsLength];
-		Object[]  args = new Object[argsLength];
-		
 		for (int i = 0; i < argsLength; i++) {
-			String parameterClassName = input.readString();
-			parameterTypes[i] = ReflectionUtil.findClass(parameterClassName);
+			SymbolTable.Symbol parameterClassName = readName(input, symbols);
+			if(parameterClassName.getName().startsWith(CALLBACK_TYPE_PREFIX)) {
+				parameterTypes[i] = ReflectionUtil.findClass(parameterClassName.getName().substring(CALLBACK_TYPE_PREFIX.length()));
+				args[i] = new CallbackReference(input.readInt());
+				continue;
+			}
+			if(parameterClassName.getName().startsWith(Attachments.TYPE_PREFIX)) {
+				parameterTypes[i] = Attachments.type(parameterClassName.getName().substring(Attachments.TYPE_PREFIX.length()));
+				args[i] = readAttachment(input, parameterClassName.getName(), attachments);
+				continue;
+			}
+			if(parameterClassName.getName().startsWith(Attachments.CONTENT_PREFIX)) {
+				String typeName = parameterClassName.getName().substring(Attachments.CONTENT_PREFIX.length());
+				parameterTypes[i] = Attachments.type(typeName);
+				args[i] = Attachments.readContent(typeName, input.readInt());
+				continue;
+			}
+			parameterTypes[i] = parameterClassName.getType();
 			args[i] = input.readObject(parameterTypes[i]);
 		}
 
-		Invoke invoke = new Invoke(interfaceName, version, methodName, serializer,args , parameterTypes);
+		Invoke invoke;
+		if(callbackId >= 0) {
+			invoke = new CallbackInvoke(callbackId, isTwoWay, interfaceName, methodName, serializer, args, parameterTypes);
+		}
+		else {
+			invoke = new Invoke(interfaceName, version, methodName, serializer,args , parameterTypes);
+		}
 		invoke.setId(msgId);
 		return invoke;
 	}
 
+	private Object readAttachment(ObjectInput input, String prefixedTypeName, Attachments attachments) {
+		if(attachments == null) {
+			throw new IllegalStateException("msg refers to an attachment but has none");
+		}
+		return attachments.read(prefixedTypeName.substring(Attachments.TYPE_PREFIX.length()), input.readInt());
+	}
+
 	@Override
 	public ServiceRegistry getRegistry() {
 		return registry;
 	}
+
+	public boolean isSymbolTableEnabled() {
+		return symbolTableEnabled;
+	}
+
+	/**
+	 * false makes encode write every name in full. symbols are only used in v2 frames, that is once
+	 * this side is set to VERSION_2 or the peer spoke it. v1 peers predate symbols and would read
+	 * the symbols flag as part of the serializer id
+	 */
+	public void setSymbolTableEnabled(boolean symbolTableEnabled) {
+		this.symbolTableEnabled = symbolTableEnabled;
+	}
+
+	public int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+
+	/**
+	 * compress bodies longer than this many bytes, with deflate at its fastest level. 0, the default,
+	 * turns it off. like VERSION_2, turn it on once the peers understand compressed bodies
+	 */
+	public void setCompressionThreshold(int compressionThreshold) {
+		this.compressionThreshold = compressionThreshold;
+	}
+
+	public double getCompressionRatioLimit() {
+		return compressionRatioLimit;
+	}
+
+	/**
+	 * when a compressed body is still larger than this part of the original, the connection stops
+	 * compressing for the next messages
+	 */
+	public void setCompressionRatioLimit(double compressionRatioLimit) {
+		this.compressionRatioLimit = compressionRatioLimit;
+	}
+
+	/**
+	 * stream elements and callbacks keep their order, so they are never split
+	 */
+	@Override
+	public int getChunkSize(Message msg, ProtocalSession session) {
+		if(chunkSize <= 0 || msg instanceof StreamResult || msg instanceof CallbackInvoke
+				|| !(msg instanceof Invoke || msg instanceof InvokeResult)) {
+			return 0;
+		}
+		JRemotingSession jremotingSession = session instanceof JRemotingSession ? (JRemotingSession)session : null;
+		return frameVersion(jremotingSession) == VERSION_2 ? chunkSize : 0;
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * v2 frames longer than this are sent in pieces of this size, interleaved with other frames,
+	 * and File and InputStream arguments and results are sent as contents of such pieces instead of
+	 * through the serializer. the receiver keeps contents in temporary files, not in memory.
+	 * 0, the default, turns both off. like compression, turn it on once the peers understand it
+	 */
+	public void setChunkSize(int chunkSize) {
+		this.chunkSize = chunkSize;
+	}
+
+	public int getLazyDecodeThreshold() {
+		return lazyDecodeThreshold;
+	}
+
+	/**
+	 * requests and results with bodies of at least this many bytes are only framed on the io thread,
+	 * their arguments or result are deserialized by the provider's worker or the caller that takes
+	 * them, see {@link com.github.jremoting.core.LazyBody}. the names of the symbol table have to be read in order,
+	 * so while it is set requests and results are sent without symbols whatever their size.
+	 * 0, the default, decodes everything on the io thread.
+	 * set it on both peers: the sender is the one that leaves symbols out, a body that carries
+	 * them is still decoded on the io thread of a receiver that has the threshold set
+	 */
+	public void setLazyDecodeThreshold(int lazyDecodeThreshold) {
+		this.lazyDecodeThreshold = lazyDecodeThreshold;
+	}
+
+	public int getVersion() {
+		return version;
+	}
+
+	public boolean isV1DeadlineEnabled() {
+		return v1DeadlineEnabled;
+	}
+
+	/**
+	 * v1 requests carry the caller's deadline in the STATUS_DEADLINE status, which providers that
+	 * predate it answer with an error. off by default, turn it on once every provider understands it.
+	 * v2 frames carry the deadline as an extension regardless of this
+	 */
+	public void setV1DeadlineEnabled(boolean v1DeadlineEnabled) {
+		this.v1DeadlineEnabled = v1DeadlineEnabled;
+	}
+
+	/**
+	 * version of the frames this side starts with. peers reply in the newest version they were
+	 * sent, so turn on VERSION_2 at clients once every provider they call understands it
+	 */
+	public void setVersion(int version) {
+		if(version != VERSION_1 && version != VERSION_2) {
+			throw new IllegalArgumentException("unknown protocal version " + version);
+		}
+		this.version = version;
+	}
 	
 }
@@ -0,0 +1,165 @@
+package com.github.jremoting.protocal;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.github.jremoting.core.ProtocalSession;
+
+/**
+ * what {@link JRemotingProtocal} remembers about one connection
+ */
+public class JRemotingSession implements ProtocalSession {
+
+	private final SymbolTable symbols = new SymbolTable();
+	//highest protocal version the peer has sent, 0 before its first frame
+	private int peerVersion = 0;
+	//bytes reserved for the body length of the next v2 frame, the size the last one needed
+	private int lengthWidth = 1;
+	//after a body compressed badly, this many messages go uncompressed
+	private static final int COMPRESSION_BACKOFF = 128;
+	private int compressionSkips = 0;
+	private Deflater deflater;
+	private Inflater inflater;
+	//callback arguments sent over this connection, index = callbackId, null for a free id
+	private final List<Object> callbacks = new ArrayList<Object>();
+	private final Map<Object, Integer> callbackIds = new IdentityHashMap<Object, Integer>();
+	//index = callbackId, times the id was sent and not released by the provider yet
+	private final List<Integer> callbackReferences = new ArrayList<Integer>();
+	private final ArrayDeque<Integer> freeCallbackIds = new ArrayDeque<Integer>();
+	//ids exported by the frame being encoded, released again if it is not sent
+	private final List<Integer> exportedCallbacks = new ArrayList<Integer>();
+	//ids of File and InputStream contents sent over this connection
+	private int nextTransferId = 0;
+
+	public SymbolTable getSymbols() {
+		return symbols;
+	}
+
+	public int getPeerVersion() {
+		return peerVersion;
+	}
+
+	public void setPeerVersion(int peerVersion) {
+		if(peerVersion > this.peerVersion) {
+			this.peerVersion = peerVersion;
+		}
+	}
+
+	public int getLengthWidth() {
+		return lengthWidth;
+	}
+
+	public void setLengthWidth(int lengthWidth) {
+		this.lengthWidth = lengthWidth;
+	}
+
+	/**
+	 * false while backing off from data that does not compress
+	 */
+	public boolean shouldCompress() {
+		if(compressionSkips > 0) {
+			compressionSkips--;
+			return false;
+		}
+		return true;
+	}
+
+	public void compressed(long inputLength, long outputLength, double maxRatio) {
+		if(outputLength > inputLength * maxRatio) {
+			compressionSkips = COMPRESSION_BACKOFF;
+		}
+	}
+
+	/**
+	 * id of a callback argument, the same object gets the same id on one connection while the
+	 * provider holds a reference to it. ids released by the provider are reused
+	 */
+	public int exportCallback(Object callback) {
+		Integer id = callbackIds.get(callback);
+		if(id == null) {
+			id = freeCallbackIds.poll();
+			if(id == null) {
+				id = callbacks.size();
+				callbacks.add(callback);
+				callbackReferences.add(0);
+			}
+			else {
+				callbacks.set(id, callback);
+			}
+			callbackIds.put(callback, id);
+		}
+		callbackReferences.set(id, callbackReferences.get(id) + 1);
+		exportedCallbacks.add(id);
+		return id;
+	}
+
+	/**
+	 * the provider dropped references of the callback, it is forgotten once none are left
+	 */
+	public void releaseCallback(int callbackId, int references) {
+		if(getCallback(callbackId) == null) {
+			return;
+		}
+		int left = callbackReferences.get(callbackId) - references;
+		if(left > 0) {
+			callbackReferences.set(callbackId, left);
+			return;
+		}
+		callbackIds.remove(callbacks.get(callbackId));
+		callbacks.set(callbackId, null);
+		callbackReferences.set(callbackId, 0);
+		freeCallbackIds.add(callbackId);
+	}
+
+	/**
+	 * start of a frame, see {@link #rollbackCallbacks()}
+	 */
+	public void markCallbacks() {
+		exportedCallbacks.clear();
+	}
+
+	/**
+	 * the frame since the mark is not sent, the provider never sees its references
+	 */
+	public void rollbackCallbacks() {
+		for (Integer id : exportedCallbacks) {
+			releaseCallback(id, 1);
+		}
+		exportedCallbacks.clear();
+	}
+
+	/**
+	 * null if no callback with this id was sent, or it was released
+	 */
+	public Object getCallback(int callbackId) {
+		if(callbackId < 0 || callbackId >= callbacks.size()) {
+			return null;
+		}
+		return callbacks.get(callbackId);
+	}
+
+	public int nextTransferId() {
+		int id = nextTransferId;
+		nextTransferId = (nextTransferId + 1) & Integer.MAX_VALUE;
+		return id;
+	}
+
+	public Deflater getDeflater() {
+		if(deflater == null) {
+			deflater = new Deflater(Deflater.BEST_SPEED);
+		}
+		return deflater;
+	}
+
+	public Inflater getInflater() {
+		if(inflater == null) {
+			inflater = new Inflater();
+		}
+		return inflater;
+	}
+}
@@ -0,0 +1,64 @@
+package com.github.jremoting.protocal;
+
+import com.github.jremoting.core.Invoke;
+import com.github.jremoting.core.LazyBody;
+import com.github.jremoting.core.Serializer;
+import com.github.jremoting.io.ByteBuffer;
+
+/**
+ * an invoke the io thread framed and read the names of, enough to dispatch it.
+ * the arguments are deserialized by the first thread that asks for them
+ */
+public class LazyInvoke extends Invoke implements LazyBody {
+
+	private final JRemotingProtocal protocal;
+	private final int bodyLength;
+	private final boolean compressed;
+	//guarded by this, null once decoded
+	private ByteBuffer frame;
+	private Invoke decoded;
+	private RuntimeException failure;
+
+	LazyInvoke(JRemotingProtocal protocal, ByteBuffer frame, int bodyLength, boolean compressed, long msgId,
+			boolean isTwoWay, String interfaceName, String version, String methodName, Serializer serializer) {
+		super(isTwoWay, interfaceName, version, methodName, serializer);
+		this.setId(msgId);
+		this.protocal = protocal;
+		this.frame = frame;
+		this.bodyLength = bodyLength;
+		this.compressed = compressed;
+	}
+
+	@Override
+	public synchronized void decodeBody() {
+		if(frame != null) {
+			try {
+				decoded = protocal.decodeLazyRequest(frame, bodyLength, compressed, getSerializer(), getId());
+			} catch (RuntimeException e) {
+				failure = e;
+			}
+			frame = null;
+		}
+		if(failure != null) {
+			throw failure;
+		}
+	}
+
+	@Override
+	public Object[] getArgs() {
+		decodeBody();
+		return decoded.getArgs();
+	}
+
+	@Override
+	public Class<?>[] getParameterTypes() {
+		decodeBody();
+		return decoded.getParameterTypes();
+	}
+
+	@Override
+	public String[] getParameterTypeNames() {
+		decodeBody();
+		return decoded.getParameterTypeNames();
+	}
+}
@@ -0,0 +1,55 @@
+package com.github.jremoting.protocal;
+
+import com.github.jremoting.core.InvokeResult;
+import com.github.jremoting.core.LazyBody;
+import com.github.jremoting.core.Serializer;
+import com.github.jremoting.io.ByteBuffer;
+
+/**
+ * a result the io thread only framed. the first thread that asks for it deserializes it,
+ * a body that fails to decode gives the exception as the result
+ */
+public class LazyInvokeResult extends InvokeResult implements LazyBody {
+
+	private final JRemotingProtocal protocal;
+	private final int bodyLength;
+	private final boolean compressed;
+	//guarded by this, null once decoded
+	private ByteBuffer frame;
+	private Object result;
+	private RuntimeException failure;
+
+	LazyInvokeResult(JRemotingProtocal protocal, ByteBuffer frame, int bodyLength, boolean compressed,
+			long msgId, Serializer serializer) {
+		super(null, msgId, serializer);
+		this.protocal = protocal;
+		this.frame = frame;
+		this.bodyLength = bodyLength;
+		this.compressed = compressed;
+	}
+
+	@Override
+	public synchronized void decodeBody() {
+		if(frame != null) {
+			try {
+				result = protocal.decodeLazyResult(frame, bodyLength, compressed, getSerializer(), getId());
+			} catch (RuntimeException e) {
+				failure = e;
+			}
+			frame = null;
+		}
+		if(failure != null) {
+			throw failure;
+		}
+	}
+
+	@Override
+	public Object getResult() {
+		try {
+			decodeBody();
+		} catch (RuntimeException e) {
+			return e;
+		}
+		return result;
+	}
+}
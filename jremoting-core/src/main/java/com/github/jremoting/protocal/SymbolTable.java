@@ -0,0 +1,119 @@
+package com.github.jremoting.protocal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.github.jremoting.io.ObjectInput;
+import com.github.jremoting.io.ObjectOutput;
+import com.github.jremoting.util.ReflectionUtil;
+
+/**
+ * names (interface, version, method, type names) sent over one connection. the first time a name
+ * is written it goes as -(id + 1) followed by the string, after that as the id alone. the tcp stream
+ * is ordered, so the peer always sees the definition before any use and no round trip is needed.
+ * each direction has its own ids, decoded names keep their resolved Class. one table per connection,
+ * held by its {@link JRemotingSession}.
+ */
+public class SymbolTable {
+
+	public static final int MAX_SYMBOLS = 4096;
+	//a name that did not fit in the table, the string follows
+	private static final int NO_SYMBOL = Integer.MIN_VALUE;
+
+	//outbound, name -> id
+	private final Map<String, Integer> outIds = new HashMap<String, Integer>();
+	private final List<String> outNames = new ArrayList<String>();
+	private int mark = 0;
+
+	//inbound, index = id
+	private final List<Symbol> inSymbols = new ArrayList<Symbol>();
+
+	public static class Symbol {
+		private final String name;
+		private Class<?> type;
+		private boolean resolved = false;
+
+		Symbol(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * the class with this name, looked up once. null if not found
+		 */
+		public Class<?> getType() throws ClassNotFoundException {
+			if(!resolved) {
+				type = ReflectionUtil.findClass(name);
+				resolved = true;
+			}
+			return type;
+		}
+	}
+
+	public void write(ObjectOutput output, String name) {
+		Integer id = outIds.get(name);
+		if(id != null) {
+			output.writeInt(id);
+			return;
+		}
+		if(outNames.size() >= MAX_SYMBOLS) {
+			output.writeInt(NO_SYMBOL);
+			output.writeString(name);
+			return;
+		}
+		id = outNames.size();
+		outIds.put(name, id);
+		outNames.add(name);
+		output.writeInt(-(id + 1));
+		output.writeString(name);
+	}
+
+	public Symbol read(ObjectInput input) {
+		int id = input.readInt();
+		if(id == NO_SYMBOL) {
+			return new Symbol(input.readString());
+		}
+		if(id < 0) {
+			id = -id - 1;
+			if(id != inSymbols.size()) {
+				throw new IllegalStateException("symbol " + id + " defined out of order, expected " + inSymbols.size());
+			}
+			Symbol symbol = new Symbol(input.readString());
+			inSymbols.add(symbol);
+			return symbol;
+		}
+		if(id >= inSymbols.size()) {
+			throw new IllegalStateException("unknown symbol " + id);
+		}
+		return inSymbols.get(id);
+	}
+
+	/**
+	 * remember the outbound table before encoding a message
+	 */
+	public void mark() {
+		mark = outNames.size();
+	}
+
+	/**
+	 * forget names defined since {@link #mark()}, the message carrying their definitions was not sent
+	 */
+	public void rollback() {
+		while (outNames.size() > mark) {
+			outIds.remove(outNames.remove(outNames.size() - 1));
+		}
+	}
+
+	public int getOutboundSize() {
+		return outNames.size();
+	}
+
+	public int getInboundSize() {
+		return inSymbols.size();
+	}
+}
@@ -0,0 +1,132 @@
+package com.github.jremoting.remoting;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import com.github.jremoting.core.MessageFuture;
+import com.github.jremoting.core.MessageFutureListener;
+import com.github.jremoting.util.Logger;
+import com.github.jremoting.util.LoggerFactory;
+
+/**
+ * results of provider methods that complete later: {@link MessageFuture}, and on jdk 8+
+ * java.util.concurrent.CompletionStage (CompletableFuture), which is looked up by reflection
+ * and listened to through a BiConsumer proxy.
+ */
+public class AsyncResults {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(AsyncResults.class);
+
+	private static final Class<?> COMPLETION_STAGE;
+	private static final Class<?> BI_CONSUMER;
+	private static final Method WHEN_COMPLETE;
+	private static final Class<?> COMPLETABLE_FUTURE;
+	private static final Method COMPLETE;
+	private static final Method COMPLETE_EXCEPTIONALLY;
+
+	static {
+		Class<?> completionStage = null;
+		Class<?> biConsumer = null;
+		Method whenComplete = null;
+		Class<?> completableFuture = null;
+		Method complete = null;
+		Method completeExceptionally = null;
+		try {
+			completionStage = Class.forName("java.util.concurrent.CompletionStage");
+			biConsumer = Class.forName("java.util.function.BiConsumer");
+			whenComplete = completionStage.getMethod("whenComplete", biConsumer);
+			completableFuture = Class.forName("java.util.concurrent.CompletableFuture");
+			complete = completableFuture.getMethod("complete", Object.class);
+			completeExceptionally = completableFuture.getMethod("completeExceptionally", Throwable.class);
+		} catch (Exception e) {
+			LOGGER.info("CompletionStage not available, only MessageFuture results are async");
+			completionStage = null;
+		}
+		COMPLETION_STAGE = completionStage;
+		BI_CONSUMER = biConsumer;
+		WHEN_COMPLETE = whenComplete;
+		COMPLETABLE_FUTURE = completableFuture;
+		COMPLETE = complete;
+		COMPLETE_EXCEPTIONALLY = completeExceptionally;
+	}
+
+	/**
+	 * CompletableFuture, CompletionStage and other types a CompletableFuture can be returned as
+	 */
+	public static boolean isCompletableFutureType(Class<?> type) {
+		return COMPLETION_STAGE != null && type != Object.class && type.isAssignableFrom(COMPLETABLE_FUTURE);
+	}
+
+	/**
+	 * client side, a CompletableFuture completed by the listener of future
+	 */
+	public static Object toCompletableFuture(MessageFuture future) {
+		try {
+			final Object completableFuture = COMPLETABLE_FUTURE.getConstructor().newInstance();
+			future.addListener(new MessageFutureListener() {
+				@Override
+				public void onMessage(Object result) {
+					try {
+						if(result instanceof Throwable) {
+							COMPLETE_EXCEPTIONALLY.invoke(completableFuture, result);
+						}
+						else {
+							COMPLETE.invoke(completableFuture, result);
+						}
+					} catch (Exception e) {
+						LOGGER.error(e.getMessage(), e);
+					}
+				}
+			});
+			return completableFuture;
+		} catch (Exception e) {
+			throw new IllegalStateException("can not create CompletableFuture", e);
+		}
+	}
+
+	public static boolean isAsync(Object result) {
+		return result instanceof MessageFuture
+				|| (COMPLETION_STAGE != null && COMPLETION_STAGE.isInstance(result));
+	}
+
+	/**
+	 * listener gets the value, or the exception the result failed with
+	 */
+	public static void listen(Object result, final MessageFutureListener listener) {
+		if(result instanceof MessageFuture) {
+			((MessageFuture)result).addListener(listener);
+			return;
+		}
+
+		Object callback = Proxy.newProxyInstance(AsyncResults.class.getClassLoader(),
+				new Class<?>[]{BI_CONSUMER}, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if(!"accept".equals(method.getName())) {
+					//equals, hashCode and toString of the proxy
+					return method.invoke(this, args);
+				}
+				Throwable error = (Throwable)args[1];
+				if(error == null) {
+					listener.onMessage(args[0]);
+				}
+				else {
+					//CompletableFuture wraps failures of dependent stages in CompletionException
+					if(error.getClass().getName().equals("java.util.concurrent.CompletionException")
+							&& error.getCause() != null) {
+						error = error.getCause();
+					}
+					listener.onMessage(error);
+				}
+				return null;
+			}
+		});
+
+		try {
+			WHEN_COMPLETE.invoke(result, callback);
+		} catch (Exception e) {
+			listener.onMessage(e);
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package com.github.jremoting.remoting;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.jremoting.core.MessageFutureListener;
+import com.github.jremoting.util.Logger;
+import com.github.jremoting.util.LoggerFactory;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+/**
+ * runs {@link MessageFutureListener}s of completed futures on an executor, or inline on the completing
+ * thread (usually the event loop or the timer) when executor is null. records how many callbacks wait in
+ * the executor and how long they waited, so a slow callback executor shows up before it hurts latency.
+ * {@link #DEFAULT} keeps listeners off the io threads, {@link #INLINE} has to be chosen explicitly.
+ */
+public class CallbackExecutor {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(CallbackExecutor.class);
+
+	public static final CallbackExecutor INLINE = new CallbackExecutor(null);
+
+	//shared daemon workers, two per core, idle threads go away after a minute.
+	//a full queue runs listeners inline, see execute
+	private static final int DEFAULT_QUEUE_SIZE = 65536;
+	public static final CallbackExecutor DEFAULT = new CallbackExecutor(newDefaultExecutor());
+
+	private final Executor executor;
+
+	private final AtomicInteger queueDepth = new AtomicInteger(0);
+	private final AtomicLong callbackCount = new AtomicLong(0);
+	//callbacks that went through the executor, only they have a latency
+	private final AtomicLong timedCount = new AtomicLong(0);
+	private final AtomicLong totalLatencyNanos = new AtomicLong(0);
+	private final AtomicLong maxLatencyNanos = new AtomicLong(0);
+
+	public CallbackExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	private static Executor newDefaultExecutor() {
+		int threads = Runtime.getRuntime().availableProcessors() * 2;
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(DEFAULT_QUEUE_SIZE), new DefaultThreadFactory("jremoting-listener", true));
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	public void execute(final MessageFutureListener listener, final Object result) {
+		if(executor == null) {
+			callbackCount.incrementAndGet();
+			invokeListener(listener, result);
+			return;
+		}
+
+		final long submitTime = System.nanoTime();
+		queueDepth.incrementAndGet();
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					queueDepth.decrementAndGet();
+					recordLatency(System.nanoTime() - submitTime);
+					invokeListener(listener, result);
+				}
+			});
+		}
+		catch(RejectedExecutionException e) {
+			//a lost listener would hang its caller, run it here instead
+			queueDepth.decrementAndGet();
+			LOGGER.warn("callback executor rejected listener, run it inline", e);
+			callbackCount.incrementAndGet();
+			invokeListener(listener, result);
+		}
+	}
+
+	private void recordLatency(long latency) {
+		callbackCount.incrementAndGet();
+		timedCount.incrementAndGet();
+		totalLatencyNanos.addAndGet(latency);
+		long max;
+		while (latency > (max = maxLatencyNanos.get())) {
+			if(maxLatencyNanos.compareAndSet(max, latency)) {
+				break;
+			}
+		}
+	}
+
+	private void invokeListener(MessageFutureListener listener, Object result) {
+		try {
+			listener.onMessage(DefaultMessageFuture.resolve(result));
+		}
+		catch(Throwable throwable) {
+			LOGGER.warn("message future listener failed", throwable);
+		}
+	}
+
+	/**
+	 * callbacks submitted to the executor but not started yet
+	 */
+	public int getQueueDepth() {
+		return queueDepth.get();
+	}
+
+	public long getCallbackCount() {
+		return callbackCount.get();
+	}
+
+	/**
+	 * average time between completion of a future and start of its callback, callbacks run inline do not count
+	 */
+	public long getAverageLatencyMicros() {
+		long count = timedCount.get();
+		return count == 0 ? 0 : totalLatencyNanos.get() / count / 1000;
+	}
+
+	public long getMaxLatencyMicros() {
+		return maxLatencyNanos.get() / 1000;
+	}
+
+	public Executor getExecutor() {
+		return executor;
+	}
+}
@@ -0,0 +1,125 @@
+package com.github.jremoting.remoting;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+
+import com.github.jremoting.core.CallbackInvoke;
+import com.github.jremoting.core.Serializer;
+import com.github.jremoting.exception.ConnectFailedException;
+import com.github.jremoting.exception.RemotingException;
+import com.github.jremoting.exception.TimeoutException;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+
+/**
+ * what a provider gets for a {@link com.github.jremoting.core.Callback} argument. calls become
+ * {@link CallbackInvoke}s on the connection the invoke came on, answered by NettyServerHandler.
+ * void methods do not wait for the consumer, but block while the connection is not writable,
+ * so a provider pushing faster than the consumer reads slows down instead of queueing.
+ * the consumer keeps its object until the proxy is released or garbage collected, see {@link #release(Object)}.
+ */
+public class CallbackProxy implements InvocationHandler {
+
+	public static final long DEFAULT_TIMEOUT = 3000;
+
+	private final NettyServerHandler handler;
+	private final Channel channel;
+	private final int callbackId;
+	private final Class<?> type;
+	private final Serializer serializer;
+	private final long timeout;
+	private volatile boolean released = false;
+
+	public CallbackProxy(NettyServerHandler handler, Channel channel, int callbackId, Class<?> type,
+			Serializer serializer, long timeout) {
+		this.handler = handler;
+		this.channel = channel;
+		this.callbackId = callbackId;
+		this.type = type;
+		this.serializer = serializer;
+		this.timeout = timeout;
+	}
+
+	public static Object newProxy(NettyServerHandler handler, Channel channel, int callbackId, Class<?> type, Serializer serializer) {
+		return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type},
+				new CallbackProxy(handler, channel, callbackId, type, serializer, DEFAULT_TIMEOUT));
+	}
+
+	/**
+	 * the provider is done with a callback argument, like an unsubscribe. the consumer forgets its
+	 * object and later calls on the proxy fail. returns false if callback is no such proxy
+	 */
+	public static boolean release(Object callback) {
+		if(callback == null || !Proxy.isProxyClass(callback.getClass())) {
+			return false;
+		}
+		InvocationHandler handler = Proxy.getInvocationHandler(callback);
+		if(!(handler instanceof CallbackProxy)) {
+			return false;
+		}
+		CallbackProxy callbackProxy = (CallbackProxy)handler;
+		if(!callbackProxy.released) {
+			callbackProxy.released = true;
+			callbackProxy.handler.releaseCallback(callbackProxy);
+		}
+		return true;
+	}
+
+	int getCallbackId() {
+		return callbackId;
+	}
+
+	Class<?> getType() {
+		return type;
+	}
+
+	Channel getChannel() {
+		return channel;
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		if(method.getDeclaringClass() == Object.class) {
+			if("equals".equals(method.getName())) {
+				return proxy == args[0];
+			}
+			if("hashCode".equals(method.getName())) {
+				return System.identityHashCode(proxy);
+			}
+			return "callback " + type.getName() + "#" + callbackId + " on " + channel;
+		}
+		if(released) {
+			throw new RemotingException("callback " + type.getName() + "#" + callbackId + " was released");
+		}
+		if(!channel.isActive()) {
+			throw new ConnectFailedException("callback connection closed:" + channel.remoteAddress());
+		}
+
+		boolean isTwoWay = method.getReturnType() != void.class;
+		CallbackInvoke invoke = new CallbackInvoke(callbackId, isTwoWay, type.getName(), method.getName(),
+				serializer, args, method.getParameterTypes());
+
+		if(!isTwoWay) {
+			handler.awaitWritable(channel, timeout);
+			channel.writeAndFlush(invoke).addListener(ChannelFutureListener.FIRE_EXCEPTION_ON_FAILURE);
+			return null;
+		}
+
+		//the answer is read by the thread that would wait for it
+		if(channel.eventLoop().inEventLoop()) {
+			throw new RemotingException("two way callback " + method.getName() + " called on the io thread");
+		}
+		DefaultMessageFuture future = new DefaultMessageFuture(invoke);
+		channel.writeAndFlush(future).addListener(ChannelFutureListener.FIRE_EXCEPTION_ON_FAILURE);
+		try {
+			return future.get(timeout, TimeUnit.MILLISECONDS);
+		} catch (java.util.concurrent.TimeoutException e) {
+			future.setResult(null);
+			handler.abandonCallback(channel, invoke);
+			throw new TimeoutException("callback timeout :" + timeout);
+		}
+	}
+}
@@ -0,0 +1,8 @@
+package com.github.jremoting.remoting;
+
+/**
+ * how {@link NettyChannelPool} picks a connection for the next message
+ */
+public enum ChannelSelectStrategy {
+	ROUND_ROBIN, LEAST_PENDING
+}
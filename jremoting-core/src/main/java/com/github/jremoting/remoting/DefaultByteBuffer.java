@@ -1,14 +1,33 @@
 package com.github.jremoting.remoting;
 
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
 
 import com.github.jremoting.io.ByteBuffer;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
 
 public class DefaultByteBuffer implements ByteBuffer {
 	private final ByteBuf nettyBuffer;
 	public static final Charset UTF8 = Charset.forName("UTF-8"); 
+	//smaller sources are copied, a buffer component costs more than the copy
+	public static final int MIN_WRAP_BYTES = 1024;
+	//sources referenced instead of copied, each goes before the byte of nettyBuffer at its offset
+	private List<Wrapped> wrapped;
+	//File and InputStream values to send behind this frame, transferId followed by the value
+	private List<Object> contents;
+	
+	private static class Wrapped {
+		final int offset;
+		final ByteBuf buffer;
+		Wrapped(int offset, ByteBuf buffer) {
+			this.offset = offset;
+			this.buffer = buffer;
+		}
+	}
 	
 	public DefaultByteBuffer(ByteBuf nettyBuffer) {
 		this.nettyBuffer = nettyBuffer;
@@ -126,6 +145,64 @@ public class DefaultByteBuffer implements ByteBuffer {
 	}
 
 
+	@Override
+	public void writeBytes(java.nio.ByteBuffer src) {
+		if(src.remaining() < MIN_WRAP_BYTES) {
+			nettyBuffer.writeBytes(src.duplicate());
+			return;
+		}
+		if(wrapped == null) {
+			wrapped = new ArrayList<Wrapped>(2);
+		}
+		wrapped.add(new Wrapped(nettyBuffer.writerIndex(), Unpooled.wrappedBuffer(src.duplicate())));
+	}
+	
+	@Override
+	public void writeContent(long transferId, Object content) {
+		if(contents == null) {
+			contents = new ArrayList<Object>(2);
+		}
+		contents.add(transferId);
+		contents.add(content);
+	}
+	
+	/**
+	 * transferId, value pairs given to writeContent, null if none
+	 */
+	public List<Object> getContents() {
+		return contents;
+	}
+	
+	public ByteBuf getNettyBuffer() {
+		return nettyBuffer;
+	}
+	
+	/**
+	 * the written bytes with the referenced sources in their places. the caller owns the result,
+	 * this buffer is not to be used anymore
+	 */
+	public ByteBuf toByteBuf() {
+		if(wrapped == null) {
+			return nettyBuffer;
+		}
+		CompositeByteBuf composite = nettyBuffer.alloc().compositeBuffer(wrapped.size() * 2 + 1);
+		int start = nettyBuffer.readerIndex();
+		int end = nettyBuffer.writerIndex();
+		for (Wrapped part : wrapped) {
+			if(part.offset > start) {
+				composite.addComponent(true, nettyBuffer.slice(start, part.offset - start).retain());
+				start = part.offset;
+			}
+			composite.addComponent(true, part.buffer);
+		}
+		if(end > start) {
+			composite.addComponent(true, nettyBuffer.slice(start, end - start).retain());
+		}
+		nettyBuffer.release();
+		wrapped = null;
+		return composite;
+	}
+
 	@Override
 	public int writerIndex() {
 		return nettyBuffer.writerIndex();
@@ -134,6 +211,12 @@ public class DefaultByteBuffer implements ByteBuffer {
 	@Override
 	public void writerIndex(int writerIndex) {
 		nettyBuffer.writerIndex(writerIndex);
+		//rewound over referenced sources, they are written again if at all
+		if(wrapped != null) {
+			for (int i = wrapped.size() - 1; i >= 0 && wrapped.get(i).offset > writerIndex; i--) {
+				wrapped.remove(i).buffer.release();
+			}
+		}
 		
 	}
 
@@ -142,6 +225,11 @@ public class DefaultByteBuffer implements ByteBuffer {
 		 return new DefaultByteBuffer(nettyBuffer.slice(index, length));
 	}
 
+	@Override
+	public ByteBuffer copy(int index, int length) {
+		return new DefaultByteBuffer(Unpooled.copiedBuffer(nettyBuffer.slice(index, length)));
+	}
+
 	@Override
 	public byte[] array() {
 		return nettyBuffer.array();
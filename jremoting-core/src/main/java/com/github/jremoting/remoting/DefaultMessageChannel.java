@@ -1,110 +1,388 @@
 package com.github.jremoting.remoting;
 
 import io.netty.bootstrap.Bootstrap;
-import io.netty.channel.Channel;
-import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollMode;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.concurrent.DefaultThreadFactory;
 
-import java.net.InetSocketAddress;
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
+import com.github.jremoting.core.Invoke;
 import com.github.jremoting.core.Message;
 import com.github.jremoting.core.MessageChannel;
 import com.github.jremoting.core.MessageFuture;
 import com.github.jremoting.core.Protocal;
-import com.github.jremoting.exception.ConnectFailedException;
 import com.github.jremoting.util.NetUtil;
 
 public class DefaultMessageChannel implements MessageChannel  {
-	
-	//key=  remoteIp:port 
-	private final ConcurrentHashMap<String, Channel> channels = new ConcurrentHashMap<String, Channel>(); 
-	private final ConcurrentHashMap<String, Object> channelLocks = new ConcurrentHashMap<String, Object>();
-	
+
+	//key=  remoteIp:port
+	private final ConcurrentHashMap<String, NettyChannelPool> pools = new ConcurrentHashMap<String, NettyChannelPool>();
+	//the bulk lane, connections of their own so large calls do not queue in front of small ones
+	private final ConcurrentHashMap<String, NettyChannelPool> bulkPools = new ConcurrentHashMap<String, NettyChannelPool>();
+
 	private final EventLoopGroup eventLoopGroup;
 	private final Protocal protocal;
-	
+	//one timer for the timeouts of every connection
+	private final HashedWheelTimer timeoutTimer = new HashedWheelTimer(
+			new DefaultThreadFactory("jremoting-timeout", true), 1, TimeUnit.MILLISECONDS, 1024);
+
+	private int connectionsPerAddress = 1;
+	//key = serviceName
+	private Map<String, Integer> serviceConnections = new HashMap<String, Integer>();
+	private int bulkConnections = 1;
+	//invokes whose estimated size reaches this take the bulk lane, 0 leaves it to Bulk and setBulk
+	private int bulkThreshold = 0;
+	private ChannelSelectStrategy selectStrategy = ChannelSelectStrategy.ROUND_ROBIN;
+	private int connectTimeout = 3000;
+	private long reconnectBaseDelay = 100;
+	private long reconnectMaxDelay = 10 * 1000;
+	//0 means flush every message
+	private int flushBatchSize = 0;
+	private long flushDelayMicros = 0;
+	//only used by the native epoll transport
+	private boolean tcpQuickAck = false;
+	private boolean edgeTriggered = true;
+	//listeners of futures run on shared workers unless an executor is set
+	private volatile CallbackExecutor callbackExecutor = CallbackExecutor.DEFAULT;
+	//callbacks providers call on a connection run on this, one at a time. null uses the shared workers
+	private Executor callbackInvokeExecutor = null;
+	private boolean inlineCallbackInvokes = false;
+	//reads InputStream arguments and writes received contents to disk
+	private Executor contentExecutor = NettyMessageCodec.DEFAULT_CONTENT_EXECUTOR;
+	//per connection, contents received beyond these are aborted
+	private int maxContentSpools = NettyMessageCodec.DEFAULT_MAX_SPOOLS;
+	private long maxContentSpoolBytes = NettyMessageCodec.DEFAULT_MAX_SPOOL_BYTES;
+
 	public DefaultMessageChannel(EventLoopGroup eventLoopGroup, Protocal protocal) {
 		this.eventLoopGroup = eventLoopGroup;
 		this.protocal = protocal;
 	}
-	
-	
+
+
 	@Override
 	public MessageFuture send(Message msg) {
-		String address = msg.getRemoteAddress();
-
-		Channel channel = channels.get(address);
+		boolean bulk = isBulk(msg);
+		NettyChannelPool pool = getPool(bulk ? bulkPools : pools, msg.getRemoteAddress());
+		int connections = bulk ? bulkConnections : getConnections(msg);
 
-		if (channel == null || !channel.isActive()) {
-			channel = connect(address);
-		}
-		
 		if(msg.isTwoWay()) {
-			DefaultMessageFuture future = new DefaultMessageFuture(msg);
-		    channel.writeAndFlush(future);
+			DefaultMessageFuture future = new DefaultMessageFuture(msg, callbackExecutor);
+			pool.write(future, connections);
 		    return future;
 		}
 		else {
-			channel.writeAndFlush(msg);
+			pool.write(msg, connections);
 			return null;
 		}
-		
-	}
-	
-	private Channel connect(String remoteAddress) {
-		Object channelLock = channelLocks.get(remoteAddress);
-		if (channelLock == null) {
-			channelLocks.putIfAbsent(remoteAddress, new Object());
-			channelLock = channelLocks.get(remoteAddress);
-		}
 
-		synchronized (channelLock) {
-			Channel channel = channels.get(remoteAddress);
+	}
 
-			if (channel != null && channel.isActive()) {
-				return channel;
+	private int getConnections(Message msg) {
+		if(msg instanceof Invoke) {
+			Integer connections = serviceConnections.get(((Invoke)msg).getServiceName());
+			if(connections != null) {
+				return connections;
 			}
+		}
+		return connectionsPerAddress;
+	}
 
-			InetSocketAddress address = NetUtil
-					.toInetSocketAddress(remoteAddress);
-
-			Bootstrap b = new Bootstrap();
-			b.group(eventLoopGroup).channel(NioSocketChannel.class)
-					.remoteAddress(address)
-					.handler(new ChannelInitializer<SocketChannel>() {
-						@Override
-						public void initChannel(SocketChannel ch)
-								throws Exception {
-							ch.pipeline().addLast(new IdleStateHandler(0,0,5),
-									new NettyMessageCodec(protocal),
-									new NettyClientHandler());
-						}
-					});
-			try {
+	/**
+	 * whether send writes msg over the bulk connections instead of the regular ones
+	 */
+	boolean isBulk(Message msg) {
+		if(!(msg instanceof Invoke)) {
+			return false;
+		}
+		Invoke invoke = (Invoke)msg;
+		return invoke.isBulk() || (bulkThreshold > 0 && estimateSize(invoke) >= bulkThreshold);
+	}
 
-				ChannelFuture f = b.connect().sync();
-				channel = f.channel();
-				
-				channels.put(remoteAddress, channel);
-				return channel;
+	/**
+	 * bytes of the arguments that can be large without walking them, the rest count nothing
+	 */
+	private static long estimateSize(Invoke invoke) {
+		Object[] args = invoke.getArgs();
+		long size = 0;
+		for (int i = 0; args != null && i < args.length; i++) {
+			Object arg = args[i];
+			if(arg instanceof byte[]) {
+				size += ((byte[])arg).length;
+			}
+			else if(arg instanceof java.nio.ByteBuffer) {
+				size += ((java.nio.ByteBuffer)arg).remaining();
+			}
+			else if(arg instanceof CharSequence) {
+				size += ((CharSequence)arg).length();
+			}
+			else if(arg instanceof File) {
+				size += ((File)arg).length();
+			}
+		}
+		return size;
+	}
 
-			} catch (Exception e) {
-				throw new ConnectFailedException("connection failed!", e);
+	private NettyChannelPool getPool(ConcurrentHashMap<String, NettyChannelPool> pools, String remoteAddress) {
+		NettyChannelPool pool = pools.get(remoteAddress);
+		if (pool != null) {
+			return pool;
+		}
+		//only the first caller for an address builds its pool
+		synchronized (pools) {
+			pool = pools.get(remoteAddress);
+			if (pool == null) {
+				pool = new NettyChannelPool(remoteAddress, createBootstrap(remoteAddress), 
+						selectStrategy, reconnectBaseDelay, reconnectMaxDelay);
+				pools.put(remoteAddress, pool);
 			}
+			return pool;
+		}
+	}
+
+	private Bootstrap createBootstrap(String remoteAddress) {
+		Bootstrap b = new Bootstrap();
+		b.group(eventLoopGroup).channel(NettyTransport.socketChannelClass(eventLoopGroup))
+				.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectTimeout)
+				.remoteAddress(NetUtil.toInetSocketAddress(remoteAddress))
+				.handler(new ChannelInitializer<SocketChannel>() {
+					@Override
+					public void initChannel(SocketChannel ch)
+							throws Exception {
+						if(flushBatchSize > 0) {
+							ch.pipeline().addLast(new NettyFlushBatchHandler(flushBatchSize, flushDelayMicros));
+						}
+						ch.pipeline().addLast(new IdleStateHandler(0,0,5),
+								new NettyMessageCodec(protocal, contentExecutor, maxContentSpools, maxContentSpoolBytes),
+								new NettyClientHandler(timeoutTimer, newCallbackInvokeExecutor()));
+					}
+				});
+		if(NettyTransport.isEpoll(eventLoopGroup)) {
+			b.option(EpollChannelOption.EPOLL_MODE, edgeTriggered ? EpollMode.EDGE_TRIGGERED : EpollMode.LEVEL_TRIGGERED)
+			.option(EpollChannelOption.TCP_QUICKACK, tcpQuickAck);
 		}
+		return b;
 	}
 
 
 	@Override
 	public void close() {
-		for (Channel channel : channels.values()) {
-			channel.close();
+		for (NettyChannelPool pool : pools.values()) {
+			pool.close();
+		}
+		for (NettyChannelPool pool : bulkPools.values()) {
+			pool.close();
 		}
+		timeoutTimer.stop();
 		eventLoopGroup.shutdownGracefully();
 	}
+
+	public int getConnectionsPerAddress() {
+		return connectionsPerAddress;
+	}
+
+	public void setConnectionsPerAddress(int connectionsPerAddress) {
+		this.connectionsPerAddress = connectionsPerAddress;
+	}
+
+	public Map<String, Integer> getServiceConnections() {
+		return serviceConnections;
+	}
+
+	public void setServiceConnections(Map<String, Integer> serviceConnections) {
+		this.serviceConnections = serviceConnections;
+	}
+
+	public int getBulkConnections() {
+		return bulkConnections;
+	}
+
+	/**
+	 * connections of the bulk lane per address, opened on the first bulk invoke
+	 */
+	public void setBulkConnections(int bulkConnections) {
+		this.bulkConnections = bulkConnections;
+	}
+
+	public int getBulkThreshold() {
+		return bulkThreshold;
+	}
+
+	/**
+	 * invokes whose byte[], ByteBuffer, String and File arguments add up to this many bytes take
+	 * the bulk lane like {@link com.github.jremoting.core.Bulk} methods. 0, the default, turns it off.
+	 * results do not count, mark methods returning large results with Bulk
+	 */
+	public void setBulkThreshold(int bulkThreshold) {
+		this.bulkThreshold = bulkThreshold;
+	}
+
+	public ChannelSelectStrategy getSelectStrategy() {
+		return selectStrategy;
+	}
+
+	public void setSelectStrategy(ChannelSelectStrategy selectStrategy) {
+		this.selectStrategy = selectStrategy;
+	}
+
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	public void setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+
+	public long getReconnectBaseDelay() {
+		return reconnectBaseDelay;
+	}
+
+	public void setReconnectBaseDelay(long reconnectBaseDelay) {
+		this.reconnectBaseDelay = reconnectBaseDelay;
+	}
+
+	public long getReconnectMaxDelay() {
+		return reconnectMaxDelay;
+	}
+
+	public void setReconnectMaxDelay(long reconnectMaxDelay) {
+		this.reconnectMaxDelay = reconnectMaxDelay;
+	}
+
+	public int getFlushBatchSize() {
+		return flushBatchSize;
+	}
+
+	public void setFlushBatchSize(int flushBatchSize) {
+		this.flushBatchSize = flushBatchSize;
+	}
+
+	public long getFlushDelayMicros() {
+		return flushDelayMicros;
+	}
+
+	public void setFlushDelayMicros(long flushDelayMicros) {
+		this.flushDelayMicros = flushDelayMicros;
+	}
+
+	public boolean isTcpQuickAck() {
+		return tcpQuickAck;
+	}
+
+	public void setTcpQuickAck(boolean tcpQuickAck) {
+		this.tcpQuickAck = tcpQuickAck;
+	}
+
+	public boolean isEdgeTriggered() {
+		return edgeTriggered;
+	}
+
+	public void setEdgeTriggered(boolean edgeTriggered) {
+		this.edgeTriggered = edgeTriggered;
+	}
+
+	/**
+	 * executor for MessageFutureListener callbacks, null goes back to {@link CallbackExecutor#DEFAULT}.
+	 */
+	public void setListenerExecutor(Executor listenerExecutor) {
+		this.callbackExecutor = listenerExecutor == null ? CallbackExecutor.DEFAULT : new CallbackExecutor(listenerExecutor);
+	}
+
+	/**
+	 * true runs MessageFutureListener callbacks inline on the event loop or timer thread.
+	 * inline is cheapest but a blocking listener stalls every connection of that loop.
+	 */
+	public void setInlineListeners(boolean inlineListeners) {
+		this.callbackExecutor = inlineListeners ? CallbackExecutor.INLINE : CallbackExecutor.DEFAULT;
+	}
+
+	public Executor getListenerExecutor() {
+		return callbackExecutor.getExecutor();
+	}
+
+	private CallbackExecutor newCallbackInvokeExecutor() {
+		if(inlineCallbackInvokes) {
+			return CallbackExecutor.INLINE;
+		}
+		Executor executor = callbackInvokeExecutor == null ? CallbackExecutor.DEFAULT.getExecutor() : callbackInvokeExecutor;
+		return new CallbackExecutor(new SerialExecutor(executor));
+	}
+
+	public Executor getCallbackInvokeExecutor() {
+		return callbackInvokeExecutor;
+	}
+
+	/**
+	 * executor for calls providers make on {@link com.github.jremoting.core.Callback} arguments,
+	 * each connection runs them one at a time in the order they came. null uses the shared listener workers.
+	 * set before the first connection is made
+	 */
+	public void setCallbackInvokeExecutor(Executor callbackInvokeExecutor) {
+		this.callbackInvokeExecutor = callbackInvokeExecutor;
+	}
+
+	public boolean isInlineCallbackInvokes() {
+		return inlineCallbackInvokes;
+	}
+
+	/**
+	 * true runs callbacks on the io thread. cheapest, but a callback that makes a synchronous
+	 * invoke on the same connection waits for a result only the blocked io thread could read
+	 */
+	public void setInlineCallbackInvokes(boolean inlineCallbackInvokes) {
+		this.inlineCallbackInvokes = inlineCallbackInvokes;
+	}
+
+	public Executor getContentExecutor() {
+		return contentExecutor;
+	}
+
+	/**
+	 * executor for the blocking work of contents, see JRemotingProtocal#setChunkSize.
+	 * set before the first connection is made
+	 */
+	public void setContentExecutor(Executor contentExecutor) {
+		this.contentExecutor = contentExecutor;
+	}
+
+	public int getMaxContentSpools() {
+		return maxContentSpools;
+	}
+
+	/**
+	 * File and InputStream arguments one connection may be receiving at once, more are aborted
+	 */
+	public void setMaxContentSpools(int maxContentSpools) {
+		this.maxContentSpools = maxContentSpools;
+	}
+
+	public long getMaxContentSpoolBytes() {
+		return maxContentSpoolBytes;
+	}
+
+	/**
+	 * bytes of received contents one connection may keep in temporary files before they are handed
+	 * over, a content that would go over is aborted
+	 */
+	public void setMaxContentSpoolBytes(long maxContentSpoolBytes) {
+		this.maxContentSpoolBytes = maxContentSpoolBytes;
+	}
+
+	/**
+	 * queue depth and latency of listener callbacks
+	 */
+	public CallbackExecutor getCallbackExecutor() {
+		return callbackExecutor;
+	}
 }
@@ -1,35 +1,64 @@
 package com.github.jremoting.remoting;
 
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
 
+import com.github.jremoting.core.InvokeResult;
+import com.github.jremoting.core.LazyBody;
 import com.github.jremoting.core.Message;
 import com.github.jremoting.core.MessageFuture;
 import com.github.jremoting.core.MessageFutureListener;
 
+import io.netty.util.Timeout;
+
+/**
+ * all state lives in one CAS updated field: null or a stack of {@link Waiter}s while pending,
+ * an {@link Outcome} once done. completing the future pops the stack, unparks waiting threads
+ * and hands listeners to the {@link CallbackExecutor}.
+ */
 public class DefaultMessageFuture implements MessageFuture {
-	
+
+	private static final AtomicReferenceFieldUpdater<DefaultMessageFuture, Object> STATE_UPDATER
+		= AtomicReferenceFieldUpdater.newUpdater(DefaultMessageFuture.class, Object.class, "state");
+
 	private final Message msg;
-	private volatile Object result;
-	
-	private static final Object CANCEL = new Object();
-	private static final Object VOID = new Object();
-	private final CountDownLatch latch = new CountDownLatch(1);
-	private final CopyOnWriteArrayList<MessageFutureListener> listeners = new CopyOnWriteArrayList<MessageFutureListener>();
-	private static final ExecutorService listenerExecutor = Executors.newSingleThreadExecutor();
+	private final CallbackExecutor callbackExecutor;
 	private final long startTime = System.currentTimeMillis();
-	
-	
+	private volatile Timeout timeout;
+	private volatile Runnable cancelCallback;
+	private volatile Object state;
+
+	private static final class Outcome {
+		private final Object result;
+		Outcome(Object result) {
+			this.result = result;
+		}
+	}
+
+	private static final class Waiter {
+		private final Thread thread;
+		private volatile MessageFutureListener listener;
+		private final Waiter next;
+		Waiter(Thread thread, MessageFutureListener listener, Waiter next) {
+			this.thread = thread;
+			this.listener = listener;
+			this.next = next;
+		}
+	}
 
 	public DefaultMessageFuture(Message msg) {
+		this(msg, CallbackExecutor.DEFAULT);
+	}
+
+	public DefaultMessageFuture(Message msg, CallbackExecutor callbackExecutor) {
 		this.msg = msg;
+		this.callbackExecutor = callbackExecutor;
 	}
-	
+
 	public boolean isTimeout() {
 		long now = System.currentTimeMillis();
 		if(now - startTime > msg.getTimeout()) {
@@ -40,78 +69,159 @@ public class DefaultMessageFuture implements MessageFuture {
 
 	@Override
 	public boolean cancel(boolean mayInterruptIfRunning) {
-		result = CANCEL;
-		latch.countDown();
+		if(!complete(new CancellationException())) {
+			return false;
+		}
+		cancelTimeout();
+		Runnable callback = cancelCallback;
+		if(callback != null) {
+			callback.run();
+		}
 		return true;
 	}
 
 	@Override
 	public Object get() throws InterruptedException, ExecutionException {
-		
-		latch.await();
-	
-		if(result instanceof RuntimeException) {
-			throw (RuntimeException)result;
+		Object current = state;
+		if(!(current instanceof Outcome)) {
+			current = await(0);
 		}
-		return result;
+		return report((Outcome)current);
 	}
 
 	@Override
 	public Object get(long timeout, TimeUnit unit) throws InterruptedException,
 			ExecutionException, TimeoutException {
-		boolean success = latch.await(timeout, unit);
-		if(!success) {
-			throw new TimeoutException();
+		Object current = state;
+		if(!(current instanceof Outcome)) {
+			current = await(System.nanoTime() + unit.toNanos(timeout));
+			if(!(current instanceof Outcome)) {
+				throw new TimeoutException();
+			}
+		}
+		return report((Outcome)current);
+	}
+
+	/**
+	 * park until done or deadline (0 means no deadline) passed, returns the latest state
+	 */
+	private Object await(long deadline) throws InterruptedException {
+		Waiter waiter = null;
+		for (;;) {
+			Object current = state;
+			if(current instanceof Outcome) {
+				return current;
+			}
+			if(Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			if(waiter == null) {
+				Waiter newWaiter = new Waiter(Thread.currentThread(), null, (Waiter)current);
+				if(STATE_UPDATER.compareAndSet(this, current, newWaiter)) {
+					waiter = newWaiter;
+				}
+				continue;
+			}
+			if(deadline == 0) {
+				LockSupport.park(this);
+			}
+			else {
+				long nanos = deadline - System.nanoTime();
+				if(nanos <= 0) {
+					return current;
+				}
+				LockSupport.parkNanos(this, nanos);
+			}
 		}
-		
+	}
+
+	private Object report(Outcome outcome) {
+		Object result = resolve(outcome.result);
 		if(result instanceof RuntimeException) {
 			throw (RuntimeException)result;
 		}
 		return result;
 	}
 
+	/**
+	 * a {@link LazyBody} result is deserialized by the thread that takes it
+	 */
+	static Object resolve(Object result) {
+		return result instanceof LazyBody ? ((InvokeResult)result).getResult() : result;
+	}
+
 	@Override
 	public boolean isCancelled() {
-		return result != null && result == CANCEL;
+		Object current = state;
+		return current instanceof Outcome && ((Outcome)current).result instanceof CancellationException;
 	}
 
 	@Override
 	public boolean isDone() {
-		return result != null;
+		return state instanceof Outcome;
 	}
 
 	@Override
 	public void addListener(MessageFutureListener listener) {
-		listeners.add(listener);
+		for (;;) {
+			Object current = state;
+			if(current instanceof Outcome) {
+				callbackExecutor.execute(listener, ((Outcome)current).result);
+				return;
+			}
+			if(STATE_UPDATER.compareAndSet(this, current, new Waiter(null, listener, (Waiter)current))) {
+				return;
+			}
+		}
 	}
 
 	@Override
 	public void removeListener(MessageFutureListener listener) {
-		listeners.remove(listener);
-	}
-	
-	private void notifyListeners() {
-		if (listeners.size() > 0) {
-			listenerExecutor.execute(new Runnable() {
-				@Override
-				public void run() {
-					for (MessageFutureListener listener : listeners) {
-						try {
-							listener.onMessage(DefaultMessageFuture.this.result);
-						}
-						catch(Throwable throwable) {
-							//ignore
-						}
-					}
+		Object current = state;
+		if(current instanceof Waiter) {
+			for (Waiter waiter = (Waiter)current; waiter != null; waiter = waiter.next) {
+				if(waiter.listener == listener) {
+					waiter.listener = null;
 				}
-			});
+			}
 		}
 	}
-	
-	public void setResult(Object result) {
-		this.result = (result == null? VOID : result);
-		latch.countDown();
-		notifyListeners();
+
+	/**
+	 * returns false if the future was already done. result may be an InvokeResult that is a {@link LazyBody}
+	 */
+	public boolean setResult(Object result) {
+		return complete(result);
+	}
+
+	private boolean complete(Object result) {
+		Outcome outcome = new Outcome(result);
+		for (;;) {
+			Object current = state;
+			if(current instanceof Outcome) {
+				return false;
+			}
+			if(STATE_UPDATER.compareAndSet(this, current, outcome)) {
+				release((Waiter)current, result);
+				return true;
+			}
+		}
+	}
+
+	private void release(Waiter head, Object result) {
+		//the stack holds the latest waiter first, notify listeners in the order they were added
+		Waiter reversed = null;
+		for (Waiter waiter = head; waiter != null; waiter = waiter.next) {
+			if(waiter.thread != null) {
+				LockSupport.unpark(waiter.thread);
+			}
+			else if(waiter.listener != null) {
+				reversed = new Waiter(null, waiter.listener, reversed);
+			}
+		}
+		for (Waiter waiter = reversed; waiter != null; waiter = waiter.next) {
+			callbackExecutor.execute(waiter.listener, result);
+		}
 	}
 
 	public Message getMessage() {
@@ -121,4 +231,22 @@ public class DefaultMessageFuture implements MessageFuture {
 	public long getStartTime() {
 		return startTime;
 	}
+
+	public void setTimeout(Timeout timeout) {
+		this.timeout = timeout;
+	}
+
+	/**
+	 * run by the thread that cancels the future
+	 */
+	public void setCancelCallback(Runnable cancelCallback) {
+		this.cancelCallback = cancelCallback;
+	}
+
+	public void cancelTimeout() {
+		Timeout current = timeout;
+		if(current != null) {
+			current.cancel();
+		}
+	}
 }
@@ -28,8 +28,13 @@ public class DefaultRpcClient implements RpcClient {
 	
 	public DefaultRpcClient(Protocal protocal, Serializer defaultSerializer,EventLoopGroup eventLoopGroup, 
 			List<InvokeFilter> invokeFilters) {
+		this(protocal, defaultSerializer, new DefaultMessageChannel(eventLoopGroup, protocal), invokeFilters);
+	}
+	
+	public DefaultRpcClient(Protocal protocal, Serializer defaultSerializer, MessageChannel messageChannel, 
+			List<InvokeFilter> invokeFilters) {
 		this.defaultSerializer = defaultSerializer;
-		this.messageChannel = new DefaultMessageChannel(eventLoopGroup, protocal);
+		this.messageChannel = messageChannel;
 		this.invokeFilterChain = new ClientInvokeFilterChain(this.messageChannel , invokeFilters);
 		this.registry = protocal.getRegistry();
 	}
@@ -1,15 +1,19 @@
 package com.github.jremoting.remoting;
 
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollMode;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 
 import com.github.jremoting.core.InvokeFilter;
 import com.github.jremoting.core.Protocal;
@@ -30,12 +34,29 @@ public class DefaultRpcServer implements RpcServer {
 	private final EventLoopGroup parentGroup;
 	private final EventLoopGroup childGroup;
 	private final Protocal protocal;
-	private final ExecutorService executor;
+	private final InvokeDispatcher dispatcher;
 	private final ServerInvokeFilterChain invokeFilterChain;
 	private final ServiceRegistry registry;
 	private final String serverAddress;
 	private volatile boolean containsProvider = false;
 	private volatile Channel serverChannel;
+	//0 means flush every message
+	private int flushBatchSize = 0;
+	private long flushDelayMicros = 0;
+	//only used by the native epoll transport
+	private boolean reusePort = false;
+	private boolean tcpQuickAck = false;
+	private boolean edgeTriggered = true;
+	//invokes beyond this are answered with STATUS_BUSY, 0 means unbounded
+	private int maxPendingInvokes = 0;
+	private final AtomicInteger pendingInvokes = new AtomicInteger(0);
+	//interrupt providers whose caller sent a cancel, otherwise they only see InvokeContext.isCancelled()
+	private boolean interruptOnCancel = false;
+	//reads InputStream results and writes received contents to disk
+	private Executor contentExecutor = NettyMessageCodec.DEFAULT_CONTENT_EXECUTOR;
+	//per connection, contents received beyond these are aborted
+	private int maxContentSpools = NettyMessageCodec.DEFAULT_MAX_SPOOLS;
+	private long maxContentSpoolBytes = NettyMessageCodec.DEFAULT_MAX_SPOOL_BYTES;
 	private static final Logger LOGGER = LoggerFactory.getLogger(DefaultRpcServer.class);
 	
 	private final LifeCycleSupport lifeCycleSupport = new LifeCycleSupport();
@@ -46,9 +67,12 @@ public class DefaultRpcServer implements RpcServer {
 			Protocal protocal, 
 			int port,
 			List<InvokeFilter> invokeFilters) {
-		this.executor = executor;
+		this.dispatcher = new InvokeDispatcher(executor);
 		this.parentGroup = parentGroup;
 		this.childGroup = childGroup;
+		if(executor instanceof EventLoopPairedExecutor) {
+			((EventLoopPairedExecutor)executor).pairWith(childGroup);
+		}
 		this.protocal = protocal;
 		this.invokeFilterChain = new ServerInvokeFilterChain(invokeFilters);
 		this.registry = protocal.getRegistry();
@@ -76,13 +100,23 @@ public class DefaultRpcServer implements RpcServer {
 	
 		ServerBootstrap bootstrap = new ServerBootstrap();
 		bootstrap.group(parentGroup, childGroup)
-		.channel(NioServerSocketChannel.class).childHandler(new ChannelInitializer<SocketChannel>() {
+		.channel(NettyTransport.serverSocketChannelClass(parentGroup)).childHandler(new ChannelInitializer<SocketChannel>() {
 			public void initChannel(SocketChannel ch) throws Exception {
-				ch.pipeline().addLast(new NettyMessageCodec(protocal),
-						new NettyServerHandler(executor,invokeFilterChain));
+				if(flushBatchSize > 0) {
+					ch.pipeline().addLast(new NettyFlushBatchHandler(flushBatchSize, flushDelayMicros));
+				}
+				ch.pipeline().addLast(new NettyMessageCodec(protocal, contentExecutor, maxContentSpools, maxContentSpoolBytes),
+						new NettyServerHandler(dispatcher,invokeFilterChain, pendingInvokes, maxPendingInvokes, interruptOnCancel));
 			}
 		});
 		
+		if(NettyTransport.isEpoll(parentGroup)) {
+			EpollMode epollMode = edgeTriggered ? EpollMode.EDGE_TRIGGERED : EpollMode.LEVEL_TRIGGERED;
+			bootstrap.option(EpollChannelOption.SO_REUSEPORT, reusePort)
+			.option(EpollChannelOption.EPOLL_MODE, epollMode)
+			.childOption(EpollChannelOption.EPOLL_MODE, epollMode)
+			.childOption(EpollChannelOption.TCP_QUICKACK, tcpQuickAck);
+		}
 		
 		try {
 		 	ChannelFuture future = bootstrap.bind(NetUtil.toInetSocketAddress(serverAddress)).sync();
@@ -115,7 +149,7 @@ public class DefaultRpcServer implements RpcServer {
 		
 		this.serverChannel.close();
 		this.parentGroup.shutdownGracefully();
-		this.executor.shutdown();
+		this.dispatcher.shutdown();
 		this.childGroup.shutdownGracefully();
 		LOGGER.info("jremoting rpc server closed normally");
 	}
@@ -123,10 +157,120 @@ public class DefaultRpcServer implements RpcServer {
 	@Override
 	public void register(ServiceProvider provider) {
 		this.invokeFilterChain.register(provider);
+		this.dispatcher.register(provider);
 		this.containsProvider = true;
 		this.start();
 		this.registry.registerParticipant(new ServiceParticipantInfo(provider.getServiceName(),
 				this.serverAddress, ParticipantType.PROVIDER));
 		
 	}
+
+	public int getFlushBatchSize() {
+		return flushBatchSize;
+	}
+
+	public void setFlushBatchSize(int flushBatchSize) {
+		this.flushBatchSize = flushBatchSize;
+	}
+
+	public long getFlushDelayMicros() {
+		return flushDelayMicros;
+	}
+
+	public void setFlushDelayMicros(long flushDelayMicros) {
+		this.flushDelayMicros = flushDelayMicros;
+	}
+
+	public boolean isReusePort() {
+		return reusePort;
+	}
+
+	public void setReusePort(boolean reusePort) {
+		this.reusePort = reusePort;
+	}
+
+	public boolean isTcpQuickAck() {
+		return tcpQuickAck;
+	}
+
+	public void setTcpQuickAck(boolean tcpQuickAck) {
+		this.tcpQuickAck = tcpQuickAck;
+	}
+
+	public boolean isEdgeTriggered() {
+		return edgeTriggered;
+	}
+
+	public void setEdgeTriggered(boolean edgeTriggered) {
+		this.edgeTriggered = edgeTriggered;
+	}
+
+	public Map<String, Integer> getServiceConcurrency() {
+		return dispatcher.getServiceConcurrency();
+	}
+
+	/**
+	 * key = serviceName, value = max running invokes. only used when the executor is a
+	 * {@link ThreadPerRequestExecutor} and the provider has no executor of its own
+	 */
+	public void setServiceConcurrency(Map<String, Integer> serviceConcurrency) {
+		dispatcher.setServiceConcurrency(serviceConcurrency);
+	}
+
+	public boolean isInterruptOnCancel() {
+		return interruptOnCancel;
+	}
+
+	public void setInterruptOnCancel(boolean interruptOnCancel) {
+		this.interruptOnCancel = interruptOnCancel;
+	}
+
+	public int getMaxPendingInvokes() {
+		return maxPendingInvokes;
+	}
+
+	public void setMaxPendingInvokes(int maxPendingInvokes) {
+		this.maxPendingInvokes = maxPendingInvokes;
+	}
+
+	public Executor getContentExecutor() {
+		return contentExecutor;
+	}
+
+	/**
+	 * executor for the blocking work of contents, see JRemotingProtocal#setChunkSize
+	 */
+	public void setContentExecutor(Executor contentExecutor) {
+		this.contentExecutor = contentExecutor;
+	}
+
+	public int getMaxContentSpools() {
+		return maxContentSpools;
+	}
+
+	/**
+	 * File and InputStream results one connection may be receiving at once, more are aborted
+	 */
+	public void setMaxContentSpools(int maxContentSpools) {
+		this.maxContentSpools = maxContentSpools;
+	}
+
+	public long getMaxContentSpoolBytes() {
+		return maxContentSpoolBytes;
+	}
+
+	/**
+	 * bytes of received contents one connection may keep in temporary files before they are handed
+	 * over, a content that would go over is aborted
+	 */
+	public void setMaxContentSpoolBytes(long maxContentSpoolBytes) {
+		this.maxContentSpoolBytes = maxContentSpoolBytes;
+	}
+
+	/**
+	 * invokes accepted by the server and not answered yet
+	 */
+	public int getPendingInvokes() {
+		return pendingInvokes.get();
+	}
 }
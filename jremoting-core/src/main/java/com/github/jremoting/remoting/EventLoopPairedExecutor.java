@@ -0,0 +1,153 @@
+package com.github.jremoting.remoting;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.EventExecutorGroup;
+import io.netty.util.concurrent.FastThreadLocal;
+
+/**
+ * gives every event loop thread its own small worker pool. NettyServerHandler submits from the
+ * event loop that read the invoke, so all invokes of a connection run on the workers paired with
+ * that loop and the result goes back to the same loop. nothing is shared between loops, use it as
+ * the server executor together with one event loop per core. only loops of the groups given to
+ * {@link #pairWith(EventExecutorGroup)} get a pool, DefaultRpcServer gives its child group. other
+ * threads share one fallback pool.
+ */
+public class EventLoopPairedExecutor extends AbstractExecutorService {
+
+	private final int threadsPerLoop;
+	private final AtomicInteger nextWorkerId = new AtomicInteger(0);
+	private final List<ExecutorService> workers = new CopyOnWriteArrayList<ExecutorService>();
+	private final List<EventExecutorGroup> loopGroups = new CopyOnWriteArrayList<EventExecutorGroup>();
+	private volatile boolean shutdown = false;
+	//for submitters that are no event loop of loopGroups, created on first use
+	private ExecutorService fallbackWorker;
+
+	private final FastThreadLocal<ExecutorService> pairedWorker = new FastThreadLocal<ExecutorService>() {
+		@Override
+		protected ExecutorService initialValue() throws Exception {
+			return inEventLoop() ? newWorker() : getFallbackWorker();
+		}
+	};
+
+	public EventLoopPairedExecutor() {
+		this(1);
+	}
+
+	public EventLoopPairedExecutor(int threadsPerLoop) {
+		if(threadsPerLoop < 1) {
+			throw new IllegalArgumentException("threadsPerLoop must be positive!");
+		}
+		this.threadsPerLoop = threadsPerLoop;
+	}
+
+	/**
+	 * threads of the loops in group get their own pool from now on
+	 */
+	public void pairWith(EventExecutorGroup group) {
+		loopGroups.add(group);
+	}
+
+	private boolean inEventLoop() {
+		for (EventExecutorGroup group : loopGroups) {
+			for (EventExecutor loop : group) {
+				if(loop.inEventLoop()) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private synchronized ExecutorService getFallbackWorker() {
+		if(fallbackWorker == null) {
+			fallbackWorker = newWorker();
+		}
+		return fallbackWorker;
+	}
+
+	private ExecutorService newWorker() {
+		if(shutdown) {
+			throw new RejectedExecutionException("executor shutdown");
+		}
+		ExecutorService worker = new ThreadPoolExecutor(threadsPerLoop, threadsPerLoop, 0, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(),
+				new DefaultThreadFactory("jremoting-worker-" + nextWorkerId.getAndIncrement()));
+		workers.add(worker);
+		return worker;
+	}
+
+	@Override
+	public void execute(Runnable command) {
+		pairedWorker.get().execute(command);
+	}
+
+	public int getThreadsPerLoop() {
+		return threadsPerLoop;
+	}
+
+	/**
+	 * number of event loops that got a paired worker so far, and the fallback pool once used
+	 */
+	public int getWorkerCount() {
+		return workers.size();
+	}
+
+	@Override
+	public void shutdown() {
+		shutdown = true;
+		for (ExecutorService worker : workers) {
+			worker.shutdown();
+		}
+	}
+
+	@Override
+	public List<Runnable> shutdownNow() {
+		shutdown = true;
+		List<Runnable> tasks = new ArrayList<Runnable>();
+		for (ExecutorService worker : workers) {
+			tasks.addAll(worker.shutdownNow());
+		}
+		return tasks;
+	}
+
+	@Override
+	public boolean isShutdown() {
+		return shutdown;
+	}
+
+	@Override
+	public boolean isTerminated() {
+		if(!shutdown) {
+			return false;
+		}
+		for (ExecutorService worker : workers) {
+			if(!worker.isTerminated()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		for (ExecutorService worker : workers) {
+			if(!worker.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
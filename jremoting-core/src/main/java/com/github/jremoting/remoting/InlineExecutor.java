@@ -0,0 +1,93 @@
+package com.github.jremoting.remoting;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.jremoting.util.Logger;
+import com.github.jremoting.util.LoggerFactory;
+
+/**
+ * runs invokes of one method on the calling io thread and watches their time. after
+ * MAX_CONSECUTIVE_OVERRUNS calls over budget in a row the method is demoted, later invokes
+ * go to the fallback executor until {@link #reset()}. created by {@link InvokeDispatcher}
+ * for {@link com.github.jremoting.core.InlineInvoke} methods, or put into
+ * ServiceExecutors.getMethodExecutors() by hand.
+ */
+public class InlineExecutor implements Executor {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(InlineExecutor.class);
+
+	public static final int MAX_CONSECUTIVE_OVERRUNS = 3;
+
+	private final long budgetNanos;
+	private volatile String name;
+	private volatile Executor fallback;
+	private volatile boolean demoted = false;
+	private final AtomicInteger consecutiveOverruns = new AtomicInteger(0);
+	private final AtomicLong overrunCount = new AtomicLong(0);
+
+	public InlineExecutor(long budgetMicros) {
+		this.budgetNanos = budgetMicros * 1000;
+	}
+
+	void init(String name, Executor fallback) {
+		this.name = name;
+		this.fallback = fallback;
+	}
+
+	@Override
+	public void execute(Runnable command) {
+		if(demoted) {
+			fallback.execute(command);
+			return;
+		}
+		long start = System.nanoTime();
+		try {
+			command.run();
+		}
+		finally {
+			check(System.nanoTime() - start);
+		}
+	}
+
+	private void check(long elapsed) {
+		if(elapsed <= budgetNanos) {
+			consecutiveOverruns.set(0);
+			return;
+		}
+		overrunCount.incrementAndGet();
+		int overruns = consecutiveOverruns.incrementAndGet();
+		if(overruns == 1) {
+			LOGGER.warn(name + " took " + elapsed / 1000 + "us on io thread, budget " + budgetNanos / 1000 + "us");
+		}
+		if(overruns >= MAX_CONSECUTIVE_OVERRUNS && !demoted && fallback != null) {
+			demoted = true;
+			LOGGER.warn(name + " exceeded its budget " + overruns + " times in a row, demoted to executor");
+		}
+	}
+
+	/**
+	 * run on the io thread again after a demotion
+	 */
+	public void reset() {
+		consecutiveOverruns.set(0);
+		demoted = false;
+	}
+
+	public boolean isDemoted() {
+		return demoted;
+	}
+
+	public long getOverrunCount() {
+		return overrunCount.get();
+	}
+
+	public long getBudgetMicros() {
+		return budgetNanos / 1000;
+	}
+
+	public String getName() {
+		return name;
+	}
+}
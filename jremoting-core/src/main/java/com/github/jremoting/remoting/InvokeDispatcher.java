@@ -0,0 +1,190 @@
+package com.github.jremoting.remoting;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+
+import com.github.jremoting.core.InlineInvoke;
+import com.github.jremoting.core.Invoke;
+import com.github.jremoting.core.LazyBody;
+import com.github.jremoting.core.ServiceExecutors;
+import com.github.jremoting.core.ServiceProvider;
+
+/**
+ * pick the executor of an invoke: the method executor of its service, else the service executor,
+ * else the server's default executor. {@link InlineInvoke} methods get an {@link InlineExecutor}
+ * that falls back to the executor the service would use otherwise. they are found by service and
+ * method name, then matched by parameter types so overloads of an inline method do not run inline too.
+ */
+public class InvokeDispatcher {
+
+	private final Executor defaultExecutor;
+	//key = serviceName
+	private final ConcurrentHashMap<String, Executor> serviceExecutors = new ConcurrentHashMap<String, Executor>();
+	//key = serviceName#methodName
+	private final ConcurrentHashMap<String, Executor> methodExecutors = new ConcurrentHashMap<String, Executor>();
+	//key = serviceName#methodName, the InlineInvoke overloads of that method
+	private final ConcurrentHashMap<String, List<InlineMethod>> inlineMethods = new ConcurrentHashMap<String, List<InlineMethod>>();
+	//key = serviceName, caps running invokes of services without an own executor in thread per request mode
+	private Map<String, Integer> serviceConcurrency = new HashMap<String, Integer>();
+
+	public InvokeDispatcher(Executor defaultExecutor) {
+		this.defaultExecutor = defaultExecutor;
+	}
+
+	public void register(ServiceProvider provider) {
+		ServiceExecutors executors = provider instanceof ServiceExecutors ? (ServiceExecutors)provider : null;
+		if(executors != null && executors.getExecutor() != null) {
+			serviceExecutors.put(provider.getServiceName(), executors.getExecutor());
+		}
+		else if(defaultExecutor instanceof ThreadPerRequestExecutor) {
+			Integer maxConcurrency = serviceConcurrency.get(provider.getServiceName());
+			if(maxConcurrency != null) {
+				serviceExecutors.put(provider.getServiceName(),
+						((ThreadPerRequestExecutor)defaultExecutor).withLimit(provider.getServiceName(), maxConcurrency));
+			}
+		}
+		Executor serviceExecutor = serviceExecutors.get(provider.getServiceName());
+		if(serviceExecutor == null) {
+			serviceExecutor = defaultExecutor;
+		}
+
+		if(provider.getTarget() != null) {
+			for (Method method : provider.getTarget().getClass().getMethods()) {
+				InlineInvoke inlineInvoke = method.getAnnotation(InlineInvoke.class);
+				if(inlineInvoke != null) {
+					String[] parameterTypeNames = parameterTypeNames(method);
+					InlineExecutor executor = new InlineExecutor(inlineInvoke.budgetMicros());
+					executor.init(signatureKey(provider.getServiceName(), method.getName(), parameterTypeNames), serviceExecutor);
+					String key = methodKey(provider.getServiceName(), method.getName());
+					List<InlineMethod> overloads = inlineMethods.get(key);
+					if(overloads == null) {
+						inlineMethods.putIfAbsent(key, new CopyOnWriteArrayList<InlineMethod>());
+						overloads = inlineMethods.get(key);
+					}
+					overloads.add(new InlineMethod(parameterTypeNames, executor));
+				}
+			}
+		}
+
+		Map<String, Executor> methods = executors == null ? null : executors.getMethodExecutors();
+		if(methods != null) {
+			for (Entry<String, Executor> entry : methods.entrySet()) {
+				registerMethod(provider.getServiceName(), entry.getKey(), entry.getValue(), serviceExecutor);
+			}
+		}
+	}
+
+	private void registerMethod(String serviceName, String methodName, Executor executor, Executor serviceExecutor) {
+		String key = methodKey(serviceName, methodName);
+		if(executor instanceof InlineExecutor) {
+			((InlineExecutor)executor).init(key, serviceExecutor);
+		}
+		methodExecutors.put(key, executor);
+	}
+
+	public Executor select(Invoke invoke) {
+		String key = null;
+		//the parameter types of a lazy invoke are in its undecoded body, a large body is no inline candidate anyway
+		if(!inlineMethods.isEmpty() && !(invoke instanceof LazyBody)) {
+			key = methodKey(invoke.getServiceName(), invoke.getMethodName());
+			List<InlineMethod> overloads = inlineMethods.get(key);
+			if(overloads != null) {
+				for (InlineMethod overload : overloads) {
+					if(overload.matches(invoke.getParameterTypeNames())) {
+						return overload.executor;
+					}
+				}
+			}
+		}
+		if(!methodExecutors.isEmpty()) {
+			if(key == null) {
+				key = methodKey(invoke.getServiceName(), invoke.getMethodName());
+			}
+			Executor executor = methodExecutors.get(key);
+			if(executor != null) {
+				return executor;
+			}
+		}
+		Executor executor = serviceExecutors.get(invoke.getServiceName());
+		return executor == null ? defaultExecutor : executor;
+	}
+
+	public Map<String, Integer> getServiceConcurrency() {
+		return serviceConcurrency;
+	}
+
+	public void setServiceConcurrency(Map<String, Integer> serviceConcurrency) {
+		this.serviceConcurrency = serviceConcurrency;
+	}
+
+	private static String methodKey(String serviceName, String methodName) {
+		return serviceName + "#" + methodName;
+	}
+
+	private static String signatureKey(String serviceName, String methodName, String[] parameterTypeNames) {
+		StringBuilder key = new StringBuilder(methodKey(serviceName, methodName)).append('(');
+		if(parameterTypeNames != null) {
+			for (int i = 0; i < parameterTypeNames.length; i++) {
+				if(i > 0) {
+					key.append(',');
+				}
+				key.append(parameterTypeNames[i]);
+			}
+		}
+		return key.append(')').toString();
+	}
+
+	private static String[] parameterTypeNames(Method method) {
+		Class<?>[] parameterTypes = method.getParameterTypes();
+		String[] names = new String[parameterTypes.length];
+		for (int i = 0; i < parameterTypes.length; i++) {
+			names[i] = parameterTypes[i].getName();
+		}
+		return names;
+	}
+
+	public void shutdown() {
+		shutdown(defaultExecutor);
+		for (Executor executor : serviceExecutors.values()) {
+			shutdown(executor);
+		}
+		for (Executor executor : methodExecutors.values()) {
+			shutdown(executor);
+		}
+		for (List<InlineMethod> overloads : inlineMethods.values()) {
+			for (InlineMethod overload : overloads) {
+				shutdown(overload.executor);
+			}
+		}
+	}
+
+	private static class InlineMethod {
+		private final String[] parameterTypeNames;
+		private final Executor executor;
+
+		InlineMethod(String[] parameterTypeNames, Executor executor) {
+			this.parameterTypeNames = parameterTypeNames;
+			this.executor = executor;
+		}
+
+		boolean matches(String[] invokeTypeNames) {
+			return Arrays.equals(parameterTypeNames, invokeTypeNames == null ? EMPTY_TYPE_NAMES : invokeTypeNames);
+		}
+	}
+
+	private static final String[] EMPTY_TYPE_NAMES = new String[0];
+
+	private static void shutdown(Executor executor) {
+		if(executor instanceof ExecutorService) {
+			((ExecutorService)executor).shutdown();
+		}
+	}
+}
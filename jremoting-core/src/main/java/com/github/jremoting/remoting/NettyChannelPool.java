@@ -0,0 +1,209 @@
+package com.github.jremoting.remoting;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.github.jremoting.exception.ConnectFailedException;
+import com.github.jremoting.util.Logger;
+import com.github.jremoting.util.LoggerFactory;
+
+/**
+ * connections to one remote address. each connection is registered to the next event loop of
+ * the group, so a pool of N channels spreads one provider's traffic over N event loops.
+ *
+ * connecting never blocks the caller: writes are queued while the connection is being established
+ * and failed fast while the address is backing off after a failed connect.
+ */
+public class NettyChannelPool {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(NettyChannelPool.class);
+
+	private static final int MAX_PENDING_WRITES = 1024;
+
+	private final String remoteAddress;
+	private final Bootstrap bootstrap;
+	private final ChannelSelectStrategy selectStrategy;
+	private final long reconnectBaseDelay;
+	private final long reconnectMaxDelay;
+	private final AtomicInteger nextIndex = new AtomicInteger(0);
+
+	private volatile Connection[] connections = new Connection[0];
+
+	//reconnect backoff of this address, guarded by this
+	private int connectFailures = 0;
+	private volatile long nextConnectTime = 0;
+
+	public NettyChannelPool(String remoteAddress, Bootstrap bootstrap, ChannelSelectStrategy selectStrategy,
+			long reconnectBaseDelay, long reconnectMaxDelay) {
+		this.remoteAddress = remoteAddress;
+		this.bootstrap = bootstrap;
+		this.selectStrategy = selectStrategy;
+		this.reconnectBaseDelay = reconnectBaseDelay;
+		this.reconnectMaxDelay = reconnectMaxDelay;
+	}
+
+	/**
+	 * write msg to one of the first poolSize connections, msg is either a {@link DefaultMessageFuture}
+	 * or a one way message
+	 */
+	public void write(Object msg, int poolSize) {
+		if(poolSize < 1) {
+			poolSize = 1;
+		}
+
+		Connection[] current = connections;
+		if(current.length < poolSize) {
+			current = grow(poolSize);
+		}
+
+		int index = selectStrategy == ChannelSelectStrategy.LEAST_PENDING
+				? leastPendingIndex(current, poolSize)
+				: (nextIndex.getAndIncrement() & Integer.MAX_VALUE) % poolSize;
+
+		current[index].write(msg);
+	}
+
+	private int leastPendingIndex(Connection[] current, int poolSize) {
+		int selected = 0;
+		int minPending = Integer.MAX_VALUE;
+		for (int i = 0; i < poolSize; i++) {
+			Channel channel = current[i].channel;
+			//not connected yet, fill the pool first
+			if(channel == null || !channel.isActive()) {
+				return i;
+			}
+			NettyClientHandler handler = channel.pipeline().get(NettyClientHandler.class);
+			int pending = handler == null ? 0 : handler.getPendingCount();
+			if(pending < minPending) {
+				minPending = pending;
+				selected = i;
+			}
+		}
+		return selected;
+	}
+
+	private synchronized Connection[] grow(int poolSize) {
+		if(connections.length >= poolSize) {
+			return connections;
+		}
+		Connection[] newConnections = new Connection[poolSize];
+		System.arraycopy(connections, 0, newConnections, 0, connections.length);
+		for (int i = connections.length; i < poolSize; i++) {
+			newConnections[i] = new Connection();
+		}
+		connections = newConnections;
+		return newConnections;
+	}
+
+	private synchronized void connectSucceeded() {
+		connectFailures = 0;
+		nextConnectTime = 0;
+	}
+
+	private synchronized void connectFailed() {
+		long delay = reconnectBaseDelay << Math.min(connectFailures, 20);
+		if(delay <= 0 || delay > reconnectMaxDelay) {
+			delay = reconnectMaxDelay;
+		}
+		connectFailures++;
+		//equal jitter, keeps clients from reconnecting in lockstep
+		delay = delay / 2 + (long)(Math.random() * (delay / 2 + 1));
+		nextConnectTime = System.currentTimeMillis() + delay;
+	}
+
+	private void fail(Object msg, ConnectFailedException cause) {
+		if(msg instanceof DefaultMessageFuture) {
+			((DefaultMessageFuture)msg).setResult(cause);
+		}
+		else if(LOGGER.isWarnEnabled()) {
+			LOGGER.warn("drop one way message, " + cause.getMessage());
+		}
+	}
+
+	public void close() {
+		for (Connection connection : connections) {
+			Channel channel = connection.channel;
+			if(channel != null) {
+				channel.close();
+			}
+		}
+	}
+
+	public String getRemoteAddress() {
+		return remoteAddress;
+	}
+
+	private class Connection implements ChannelFutureListener {
+		private volatile Channel channel;
+		//guarded by this
+		private boolean connecting = false;
+		private final Queue<Object> pendingWrites = new ArrayDeque<Object>();
+
+		public void write(Object msg) {
+			Channel ch = channel;
+			if (ch != null && ch.isActive()) {
+				ch.writeAndFlush(msg);
+				return;
+			}
+
+			synchronized (this) {
+				ch = channel;
+				if (ch != null && ch.isActive()) {
+					ch.writeAndFlush(msg);
+					return;
+				}
+
+				if(!connecting && System.currentTimeMillis() < nextConnectTime) {
+					fail(msg, new ConnectFailedException("connect to " + remoteAddress + " failed, waiting to reconnect"));
+					return;
+				}
+
+				if(pendingWrites.size() >= MAX_PENDING_WRITES) {
+					fail(msg, new ConnectFailedException("too many pending writes to " + remoteAddress));
+					return;
+				}
+
+				pendingWrites.add(msg);
+
+				if(!connecting) {
+					connecting = true;
+					bootstrap.connect().addListener(this);
+				}
+			}
+		}
+
+		@Override
+		public void operationComplete(ChannelFuture future) throws Exception {
+			synchronized (this) {
+				connecting = false;
+
+				if(future.isSuccess()) {
+					connectSucceeded();
+					channel = future.channel();
+
+					Object msg;
+					while ((msg = pendingWrites.poll()) != null) {
+						channel.write(msg);
+					}
+					channel.flush();
+				}
+				else {
+					connectFailed();
+					LOGGER.warn("connect to " + remoteAddress + " failed!", future.cause());
+
+					ConnectFailedException cause = new ConnectFailedException("connect to " + remoteAddress + " failed!", future.cause());
+					Object msg;
+					while ((msg = pendingWrites.poll()) != null) {
+						fail(msg, cause);
+					}
+				}
+			}
+		}
+	}
+}
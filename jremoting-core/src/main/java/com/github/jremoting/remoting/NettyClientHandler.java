@@ -1,66 +1,133 @@
 package com.github.jremoting.remoting;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.util.concurrent.TimeUnit;
 
+import com.github.jremoting.core.CallbackInvoke;
+import com.github.jremoting.core.CallbackReleaseMessage;
+import com.github.jremoting.core.CancelMessage;
 import com.github.jremoting.core.HeartbeatMessage;
 import com.github.jremoting.core.InvokeResult;
+import com.github.jremoting.core.LazyBody;
 import com.github.jremoting.core.Message;
+import com.github.jremoting.core.MessageFutureListener;
+import com.github.jremoting.core.StreamResult;
+import com.github.jremoting.exception.ConnectFailedException;
 import com.github.jremoting.exception.ProtocalException;
+import com.github.jremoting.exception.RemotingException;
 import com.github.jremoting.exception.TimeoutException;
 import com.github.jremoting.util.Logger;
 import com.github.jremoting.util.LoggerFactory;
+import com.github.jremoting.util.LongObjectMap;
+import com.github.jremoting.util.ReflectionUtil;
 
 import io.netty.channel.ChannelDuplexHandler;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelPromise;
 import io.netty.handler.timeout.IdleStateEvent;
-import io.netty.util.concurrent.ScheduledFuture;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
 
 
 public class NettyClientHandler extends ChannelDuplexHandler {
 
-	private final Map<Long, DefaultMessageFuture> futures = new HashMap<Long, DefaultMessageFuture>();
+	private final LongObjectMap<DefaultMessageFuture> futures = new LongObjectMap<DefaultMessageFuture>();
+	//streams whose first element came, their futures are done and removed. only touched by the event loop
+	private final LongObjectMap<StreamIterator> streams = new LongObjectMap<StreamIterator>();
 	private long nextMsgId = 0;
-	private ScheduledFuture<?> removeTimoutFutrueTask;
+	//futures is only touched by the event loop, other threads read this snapshot
+	private volatile int pendingCount = 0;
+	private final Timer timeoutTimer;
+	//runs callbacks the providers call on this connection, in order and off the io thread unless it is INLINE
+	private final CallbackExecutor callbackExecutor;
 	private static final Logger LOGGER = LoggerFactory.getLogger(NettyClientHandler.class);
 	
+	public NettyClientHandler(Timer timeoutTimer) {
+		this(timeoutTimer, new CallbackExecutor(new SerialExecutor(CallbackExecutor.DEFAULT.getExecutor())));
+	}
+	
+	public NettyClientHandler(Timer timeoutTimer, CallbackExecutor callbackExecutor) {
+		this.timeoutTimer = timeoutTimer;
+		this.callbackExecutor = callbackExecutor;
+	}
 	
-	private final Runnable timeoutFutureReaper = new Runnable() {
+	/**
+	 * runs when the caller gives up on a future, by timeout on the timer thread or by cancel on
+	 * the caller thread. the future is completed right there, so the caller is released on time,
+	 * removing it from futures and telling the provider with a {@link CancelMessage} is left to the event loop
+	 */
+	private class AbandonTask implements TimerTask, Runnable {
+		private final ChannelHandlerContext ctx;
+		private final DefaultMessageFuture future;
+		
+		public AbandonTask(ChannelHandlerContext ctx, DefaultMessageFuture future) {
+			this.ctx = ctx;
+			this.future = future;
+		}
+
+		@Override
+		public void run(Timeout timeout) throws Exception {
+			future.setResult(new TimeoutException("invoke timeout :" + future.getMessage().getTimeout()));
+			run();
+		}
+
 		@Override
 		public void run() {
-			List<Long> timeoutMsgIds = new ArrayList<Long>(futures.size());
-			for (DefaultMessageFuture future : futures.values()) {
-				if(future.isTimeout()) {
-					timeoutMsgIds.add(future.getMessage().getId());
-				}
+			if(!ctx.executor().inEventLoop()) {
+				ctx.executor().execute(this);
+				return;
 			}
+			long msgId = future.getMessage().getId();
+			//null if the response came first
+			if(futures.remove(msgId) != null) {
+				pendingCount = futures.size();
+				ctx.writeAndFlush(new CancelMessage(msgId)).addListener(ChannelFutureListener.FIRE_EXCEPTION_ON_FAILURE);
+			}
+		}
+	}
 
-			for (Long msgId : timeoutMsgIds) {
-				DefaultMessageFuture timeoutFuture = futures.remove(msgId);
-				if(timeoutFuture != null) {
-					TimeoutException timeoutException = new TimeoutException("invoke timeout :" + timeoutFuture.getMessage().getTimeout());
-					if(!timeoutFuture.isDone()) {
-						timeoutFuture.setResult(timeoutException);
-					}
-				}
+	/**
+	 * the caller closed a stream before its end
+	 */
+	private class CloseStreamTask implements Runnable {
+		private final ChannelHandlerContext ctx;
+		private final long msgId;
+		
+		public CloseStreamTask(ChannelHandlerContext ctx, long msgId) {
+			this.ctx = ctx;
+			this.msgId = msgId;
+		}
+
+		@Override
+		public void run() {
+			if(!ctx.executor().inEventLoop()) {
+				ctx.executor().execute(this);
+				return;
 			}
-			
-			if(LOGGER.isDebugEnabled()) {
-				LOGGER.debug("remove timeout future count:" + timeoutMsgIds.size());
+			if(streams.remove(msgId) != null) {
+				ctx.writeAndFlush(new CancelMessage(msgId)).addListener(ChannelFutureListener.FIRE_EXCEPTION_ON_FAILURE);
 			}
 		}
-	};
-	
+	}
 
 	@Override
 	public void channelInactive(ChannelHandlerContext ctx) throws Exception {
-		if(removeTimoutFutrueTask != null) {
-			removeTimoutFutrueTask.cancel(true);
+		//fail in flight calls now instead of letting callers wait for their timeout
+		if(!futures.isEmpty() || !streams.isEmpty()) {
+			ConnectFailedException exception = new ConnectFailedException("connection closed:" + ctx.channel().remoteAddress());
+			for (DefaultMessageFuture future : futures.values()) {
+				future.cancelTimeout();
+				future.setResult(exception);
+			}
+			futures.clear();
+			pendingCount = 0;
+			for (StreamIterator stream : streams.values()) {
+				stream.end(exception);
+			}
+			streams.clear();
 		}
 		
 		ctx.fireChannelInactive();
@@ -70,12 +137,21 @@ public class NettyClientHandler extends ChannelDuplexHandler {
         if(msg instanceof DefaultMessageFuture) {
         	DefaultMessageFuture future = (DefaultMessageFuture)msg;
         	Message message  = future.getMessage();
+        	//cancelled while waiting for the connection
+        	if(future.isDone()) {
+        		promise.trySuccess();
+        		return;
+        	}
         	if(message.isTwoWay()) {
         		message.setId(nextMsgId++);
         		futures.put(message.getId(), future);
-        		if(removeTimoutFutrueTask == null) {
-        			removeTimoutFutrueTask = ctx.executor().scheduleAtFixedRate(timeoutFutureReaper, 5, 5, TimeUnit.SECONDS);
-            	}
+        		pendingCount = futures.size();
+        		AbandonTask abandonTask = new AbandonTask(ctx, future);
+        		future.setCancelCallback(abandonTask);
+        		if(message.getTimeout() > 0) {
+        			future.setTimeout(timeoutTimer.newTimeout(abandonTask, 
+        					message.getTimeout(), TimeUnit.MILLISECONDS));
+        		}
         	}
         	
         	ctx.writeAndFlush(message, promise).addListener(ChannelFutureListener.FIRE_EXCEPTION_ON_FAILURE);
@@ -86,11 +162,30 @@ public class NettyClientHandler extends ChannelDuplexHandler {
     }
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
-    	if (msg instanceof InvokeResult) {
+    	if (msg instanceof CallbackInvoke) {
+    		callbackExecutor.execute(new CallbackTask(ctx), msg);
+    	}
+    	else if (msg instanceof CallbackReleaseMessage) {
+    		//the codec's session already forgot the callback
+    	}
+    	else if (msg instanceof StreamResult) {
+    		readStream(ctx, (StreamResult)msg);
+    	}
+    	else if (msg instanceof InvokeResult) {
 			InvokeResult invokeResult = (InvokeResult)msg;
 			DefaultMessageFuture future = futures.remove(invokeResult.getId());
+			pendingCount = futures.size();
 			if(future != null) {
-				future.setResult(invokeResult.getResult());
+				future.cancelTimeout();
+				//a lazy result is deserialized by the thread that takes it from the future
+				future.setResult(invokeResult instanceof LazyBody ? invokeResult : invokeResult.getResult());
+			}
+			else if(!(invokeResult instanceof LazyBody) && invokeResult.getResult() instanceof Throwable) {
+				//the provider failed in the middle of a stream
+				StreamIterator stream = streams.remove(invokeResult.getId());
+				if(stream != null) {
+					stream.end((Throwable)invokeResult.getResult());
+				}
 			}
 		}
     	else if(msg instanceof HeartbeatMessage) {
@@ -104,6 +199,73 @@ public class NettyClientHandler extends ChannelDuplexHandler {
 		}
     }
     
+    /**
+     * calls the consumer's callback object, answers two way calls
+     */
+    private static class CallbackTask implements MessageFutureListener {
+    	private final ChannelHandlerContext ctx;
+    	
+    	public CallbackTask(ChannelHandlerContext ctx) {
+    		this.ctx = ctx;
+    	}
+
+		@Override
+		public void onMessage(Object msg) {
+			CallbackInvoke invoke = (CallbackInvoke)msg;
+			Object result;
+			try {
+				if(invoke.getTarget() == null) {
+					throw new RemotingException("no callback " + invoke.getCallbackId() + " on this connection");
+				}
+				Method method = ReflectionUtil.findClass(invoke.getInterfaceName())
+						.getMethod(invoke.getMethodName(), invoke.getParameterTypes());
+				result = method.invoke(invoke.getTarget(), invoke.getArgs());
+			}
+			catch (InvocationTargetException e) {
+				result = e.getCause();
+			}
+			catch (Throwable th) {
+				result = th;
+			}
+			
+			if(invoke.isTwoWay()) {
+				ctx.channel().writeAndFlush(new InvokeResult(result, invoke.getId(), invoke.getSerializer()))
+						.addListener(ChannelFutureListener.FIRE_EXCEPTION_ON_FAILURE);
+			}
+			else if(result instanceof Throwable) {
+				LOGGER.warn("callback " + invoke.getMethodName() + " failed", (Throwable)result);
+			}
+		}
+    }
+    
+    /**
+     * the first element completes the future with a StreamIterator, the rest go into it
+     */
+    private void readStream(ChannelHandlerContext ctx, StreamResult streamResult) {
+    	long msgId = streamResult.getId();
+    	StreamIterator stream = streams.get(msgId);
+    	if(stream == null) {
+    		DefaultMessageFuture future = futures.remove(msgId);
+    		pendingCount = futures.size();
+    		//abandoned by the caller, the provider got a cancel
+    		if(future == null) {
+    			return;
+    		}
+    		future.cancelTimeout();
+    		stream = new StreamIterator(ctx.channel(), msgId, future.getMessage().getTimeout(), new CloseStreamTask(ctx, msgId));
+    		streams.put(msgId, stream);
+    		future.setResult(stream);
+    	}
+    	
+    	if(streamResult.isEnd()) {
+    		streams.remove(msgId);
+    		stream.end(null);
+    	}
+    	else {
+    		stream.offer(streamResult.getResult());
+    	}
+    }
+    
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause)
             throws Exception {
@@ -111,7 +273,9 @@ public class NettyClientHandler extends ChannelDuplexHandler {
         if(cause instanceof ProtocalException) {
         	ProtocalException protocalException = (ProtocalException)cause;
         	DefaultMessageFuture future = futures.remove(protocalException.getMsgId());
+        	pendingCount = futures.size();
         	if(future != null) {
+        		future.cancelTimeout();
         		future.setResult(protocalException);
         	}
         }   
@@ -119,6 +283,10 @@ public class NettyClientHandler extends ChannelDuplexHandler {
         ctx.close();
     }
     
+    public int getPendingCount() {
+    	return pendingCount;
+    }
+    
     @Override
     public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
 		if (evt instanceof IdleStateEvent) {
@@ -0,0 +1,119 @@
+package com.github.jremoting.remoting;
+
+import java.util.concurrent.TimeUnit;
+
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+
+/**
+ * consolidate flushes of one channel. a flush is passed on when maxBatchSize flushes are pending,
+ * when the current read loop completes, or when the delayed flush task runs. with maxDelayMicros = 0
+ * the task runs at the end of the current event loop tick, so a lone message is not held back.
+ * must be added in front of the codec so it sees the flushes of every handler.
+ */
+public class NettyFlushBatchHandler extends ChannelDuplexHandler {
+
+	private final int maxBatchSize;
+	private final long maxDelayMicros;
+
+	private ChannelHandlerContext ctx;
+	private int pendingFlushes = 0;
+	private boolean readInProgress = false;
+	private boolean flushScheduled = false;
+
+	private final Runnable flushTask = new Runnable() {
+		@Override
+		public void run() {
+			flushScheduled = false;
+			if(pendingFlushes > 0) {
+				flushNow(ctx);
+			}
+		}
+	};
+
+	public NettyFlushBatchHandler(int maxBatchSize, long maxDelayMicros) {
+		if(maxBatchSize < 1) {
+			throw new IllegalArgumentException("maxBatchSize must be positive!");
+		}
+		this.maxBatchSize = maxBatchSize;
+		this.maxDelayMicros = maxDelayMicros;
+	}
+
+	@Override
+	public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+		this.ctx = ctx;
+	}
+
+	@Override
+	public void flush(ChannelHandlerContext ctx) throws Exception {
+		if(++pendingFlushes >= maxBatchSize) {
+			flushNow(ctx);
+			return;
+		}
+		//channelReadComplete will flush
+		if(readInProgress) {
+			return;
+		}
+		if(!flushScheduled) {
+			flushScheduled = true;
+			if(maxDelayMicros > 0) {
+				ctx.executor().schedule(flushTask, maxDelayMicros, TimeUnit.MICROSECONDS);
+			}
+			else {
+				ctx.executor().execute(flushTask);
+			}
+		}
+	}
+
+	@Override
+	public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+		readInProgress = true;
+		ctx.fireChannelRead(msg);
+	}
+
+	@Override
+	public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+		readInProgress = false;
+		if(pendingFlushes > 0) {
+			flushNow(ctx);
+		}
+		ctx.fireChannelReadComplete();
+	}
+
+	@Override
+	public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+		if(!ctx.channel().isWritable() && pendingFlushes > 0) {
+			flushNow(ctx);
+		}
+		ctx.fireChannelWritabilityChanged();
+	}
+
+	@Override
+	public void close(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+		if(pendingFlushes > 0) {
+			flushNow(ctx);
+		}
+		ctx.close(promise);
+	}
+
+	@Override
+	public void disconnect(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+		if(pendingFlushes > 0) {
+			flushNow(ctx);
+		}
+		ctx.disconnect(promise);
+	}
+
+	@Override
+	public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+		if(pendingFlushes > 0) {
+			flushNow(ctx);
+		}
+	}
+
+	private void flushNow(ChannelHandlerContext ctx) {
+		pendingFlushes = 0;
+		ctx.flush();
+	}
+}
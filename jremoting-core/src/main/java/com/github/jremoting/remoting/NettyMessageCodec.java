@@ -1,45 +1,168 @@
 package com.github.jremoting.remoting;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
+import com.github.jremoting.core.ChunkMessage;
+import com.github.jremoting.core.ContentReference;
+import com.github.jremoting.core.Invoke;
+import com.github.jremoting.core.InvokeResult;
+import com.github.jremoting.core.LazyBody;
 import com.github.jremoting.core.Message;
 import com.github.jremoting.core.Protocal;
+import com.github.jremoting.core.ProtocalSession;
+import com.github.jremoting.exception.RemotingException;
+import com.github.jremoting.util.Logger;
+import com.github.jremoting.util.LoggerFactory;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.DefaultFileRegion;
 import io.netty.handler.codec.ByteToMessageCodec;
+import io.netty.util.concurrent.DefaultThreadFactory;
 
 
 public class NettyMessageCodec extends  ByteToMessageCodec<Message>{
-	
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(NettyMessageCodec.class);
+
+	//shared daemon threads for the blocking reads and writes of contents, idle ones go away after a minute
+	public static final Executor DEFAULT_CONTENT_EXECUTOR = Executors.newCachedThreadPool(
+			new DefaultThreadFactory("jremoting-content", true));
+
 	private final Protocal  protocal;
+	//a codec is created for every channel, so is the session
+	private final ProtocalSession session;
+	public static final int DEFAULT_MAX_SPOOLS = 64;
+	public static final long DEFAULT_MAX_SPOOL_BYTES = 1L << 30;
+
+	//reads InputStream contents and writes received ones to disk, so slow disks and streams never hold the io thread
+	private final Executor contentExecutor;
+	//contents received at once on this connection, more are aborted
+	private final int maxSpools;
+	//bytes of received contents on disk not handed over yet, a content that would go over is aborted
+	private final long maxSpoolBytes;
+
+	//the rest is only touched on the io thread
+	private long nextTransferId;
+	//frames coming in pieces, by transfer id
+	private final Map<Long, CompositeByteBuf> assemblies = new HashMap<Long, CompositeByteBuf>();
+	//contents coming in pieces, by transfer id
+	private final Map<Long, Spool> spools = new HashMap<Long, Spool>();
+	//decoded messages waiting for their contents, in arrival order
+	private final List<Message> held = new LinkedList<Message>();
+	private long spooledBytes = 0;
 
 	public NettyMessageCodec(Protocal  protocal) {
+		this(protocal, DEFAULT_CONTENT_EXECUTOR, DEFAULT_MAX_SPOOLS, DEFAULT_MAX_SPOOL_BYTES);
+	}
+
+	public NettyMessageCodec(Protocal  protocal, Executor contentExecutor, int maxSpools, long maxSpoolBytes) {
 		this.protocal = protocal;
+		this.session = protocal.createSession();
+		this.contentExecutor = contentExecutor;
+		this.maxSpools = maxSpools;
+		this.maxSpoolBytes = maxSpoolBytes;
 	}
 
+	/**
+	 * encodes here instead of in the inner encoder, which can only write into a buffer it allocated.
+	 * large byte[] and ByteBuffer values are composed into the frame without a copy. frames over
+	 * the chunk size of the protocal go in pieces, the next one written once the last is flushed,
+	 * so frames written meanwhile get between them. contents follow the frame the same way
+	 */
 	@Override
-	protected void encode(ChannelHandlerContext ctx, Message msg, ByteBuf out)
-			throws Exception {
+	public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+		if(!(msg instanceof Message)) {
+			ctx.write(msg, promise);
+			return;
+		}
+		Message message = (Message)msg;
+		DefaultByteBuffer buffer = encodeBuffer(ctx, message);
+		List<Object> contents = buffer.getContents();
+		ByteBuf frame = buffer.toByteBuf();
+		int chunkSize = protocal.getChunkSize(message, session);
+		if(chunkSize > 0 && frame.readableBytes() > chunkSize) {
+			new FramePump(ctx, frame, nextTransferId++, chunkSize, promise).writeNext();
+		}
+		else {
+			ctx.write(frame, promise);
+		}
+		for (int i = 0; contents != null && i < contents.size(); i += 2) {
+			long transferId = (Long)contents.get(i);
+			Object content = contents.get(i + 1);
+			if(content instanceof File) {
+				new FilePump(ctx, transferId, (File)content, chunkSize).writeNext();
+			}
+			else {
+				new StreamPump(ctx, transferId, (InputStream)content, chunkSize).readNext();
+			}
+		}
+	}
+
+	private DefaultByteBuffer encodeBuffer(ChannelHandlerContext ctx, Message msg) {
+		DefaultByteBuffer buffer = new DefaultByteBuffer(ctx.alloc().ioBuffer());
 		try {
-			protocal.encode(msg, new DefaultByteBuffer(out));
+			protocal.encode(msg, buffer, session);
 		} catch (Exception e) {
 			ctx.fireExceptionCaught(e);
 		}
+		return buffer;
+	}
+
+	private ByteBuf encodeHead(ChannelHandlerContext ctx, long transferId, boolean content, boolean last, boolean aborted, int length) {
+		return encodeBuffer(ctx, new ChunkMessage(transferId, content, last, aborted, length)).toByteBuf();
+	}
+
+	@Override
+	protected void encode(ChannelHandlerContext ctx, Message msg, ByteBuf out)
+			throws Exception {
+		ByteBuf frame = encodeBuffer(ctx, msg).toByteBuf();
+		try {
+			out.writeBytes(frame);
+		} finally {
+			frame.release();
+		}
 	}
 
 	@Override
 	protected void decode(ChannelHandlerContext ctx, ByteBuf in,
 			List<Object> out) throws Exception {
-	
+
 		try {
-			Message msg = protocal.decode(new DefaultByteBuffer(in));
+			Message msg = protocal.decode(new DefaultByteBuffer(in), session);
 			if(msg == Message.NEED_MORE) {
 				return;
 			}
-			
+			if(msg instanceof ChunkMessage) {
+				msg = receive(ctx, (ChunkMessage)msg, out);
+			}
+
 			if (msg != null) {
-				out.add(msg);
+				if(isComplete(msg)) {
+					deliver(ctx, msg, out);
+				}
+				else {
+					held.add(msg);
+				}
 				return;
 			}
 		} catch (Exception e) {
@@ -48,4 +171,549 @@ public class NettyMessageCodec extends  ByteToMessageCodec<Message>{
 
 	}
 
+	/**
+	 * the assembled message once the last piece of a frame is in, else null
+	 */
+	private Message receive(ChannelHandlerContext ctx, ChunkMessage chunk, List<Object> out) throws Exception {
+		ByteBuf piece = ((DefaultByteBuffer)chunk.getPiece()).getNettyBuffer();
+		if(chunk.isContent()) {
+			spool(chunk.getId()).add(ctx, piece, chunk.isLast(), chunk.isAborted());
+			return null;
+		}
+
+		CompositeByteBuf assembly = assemblies.get(chunk.getId());
+		if(assembly == null) {
+			assembly = ctx.alloc().compositeBuffer(Integer.MAX_VALUE);
+			assemblies.put(chunk.getId(), assembly);
+		}
+		assembly.addComponent(true, piece.retain());
+		if(!chunk.isLast()) {
+			return null;
+		}
+		assemblies.remove(chunk.getId());
+		try {
+			Message msg = protocal.decode(new DefaultByteBuffer(assembly), session);
+			return msg == Message.NEED_MORE ? null : msg;
+		} finally {
+			assembly.release();
+		}
+	}
+
+	private Spool spool(long transferId) {
+		Spool spool = spools.get(transferId);
+		if(spool == null) {
+			spool = new Spool(transferId);
+			if(spools.size() >= maxSpools) {
+				LOGGER.warn("more than " + maxSpools + " contents at once on one connection, abort content " + transferId);
+				spool.aborted = true;
+				spool.abortedHere = true;
+			}
+			spools.put(transferId, spool);
+		}
+		return spool;
+	}
+
+	private static ContentReference[] references(Message msg) {
+		//frames with contents are never left to another thread, and asking would decode this one here
+		if(msg instanceof LazyBody) {
+			return null;
+		}
+		Object[] values = msg instanceof Invoke ? ((Invoke)msg).getArgs()
+				: (msg instanceof InvokeResult ? new Object[]{((InvokeResult)msg).getResult()} : null);
+		if(values == null) {
+			return null;
+		}
+		ContentReference[] references = null;
+		for (int i = 0; i < values.length; i++) {
+			if(values[i] instanceof ContentReference) {
+				if(references == null) {
+					references = new ContentReference[values.length];
+				}
+				references[i] = (ContentReference)values[i];
+			}
+		}
+		return references;
+	}
+
+	private boolean isComplete(Message msg) {
+		ContentReference[] references = references(msg);
+		for (int i = 0; references != null && i < references.length; i++) {
+			if(references[i] != null && !spool(references[i].getTransferId()).isDone()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * on the io thread once a content is on disk, hands on the messages that have all theirs now
+	 */
+	private void release(ChannelHandlerContext ctx) {
+		List<Object> out = new ArrayList<Object>();
+		Iterator<Message> it = held.iterator();
+		while (it.hasNext()) {
+			Message msg = it.next();
+			if(isComplete(msg)) {
+				it.remove();
+				deliver(ctx, msg, out);
+			}
+		}
+		for (Object msg : out) {
+			ctx.fireChannelRead(msg);
+		}
+		if(!out.isEmpty()) {
+			ctx.fireChannelReadComplete();
+		}
+	}
+
+	/**
+	 * hands the message on with its contents in place of the references
+	 */
+	private void deliver(ChannelHandlerContext ctx, Message msg, List<Object> out) {
+		ContentReference[] references = references(msg);
+		if(references == null) {
+			out.add(msg);
+			return;
+		}
+		Object[] values = new Object[references.length];
+		boolean aborted = false;
+		boolean abortedHere = false;
+		for (int i = 0; i < references.length; i++) {
+			if(references[i] != null) {
+				Spool spool = spools.remove(references[i].getTransferId());
+				spooledBytes -= spool.length;
+				aborted |= spool.isAborted();
+				abortedHere |= spool.abortedHere;
+				values[i] = spool.open(references[i].getType());
+			}
+		}
+		if(aborted) {
+			for (Object value : values) {
+				close(value);
+			}
+			RemotingException error = new RemotingException("content of msg " + msg.getId()
+					+ (abortedHere ? " aborted by the receiver, over its content limits or not written to disk" : " aborted by the sender"));
+			if(msg instanceof InvokeResult) {
+				out.add(new InvokeResult(error, msg.getId(), msg.getSerializer()));
+			}
+			else if(msg.isTwoWay()) {
+				//from the channel, so it passes through this codec's encoder
+				ctx.channel().writeAndFlush(new InvokeResult(error, msg.getId(), msg.getSerializer()))
+						.addListener(ChannelFutureListener.FIRE_EXCEPTION_ON_FAILURE);
+			}
+			else {
+				LOGGER.warn(error.getMessage());
+			}
+			return;
+		}
+		if(msg instanceof InvokeResult) {
+			InvokeResult result = new InvokeResult(values[0], msg.getId(), msg.getSerializer());
+			result.setRemoteAddress(msg.getRemoteAddress());
+			out.add(result);
+			return;
+		}
+		Object[] args = ((Invoke)msg).getArgs();
+		for (int i = 0; i < references.length; i++) {
+			if(references[i] != null) {
+				args[i] = values[i];
+			}
+		}
+		out.add(msg);
+	}
+
+	private static void close(Object value) {
+		try {
+			if(value instanceof InputStream) {
+				((InputStream)value).close();
+			}
+			else if(value instanceof File) {
+				((File)value).delete();
+			}
+		} catch (IOException e) {
+			LOGGER.warn("close content failed", e);
+		}
+	}
+
+	@Override
+	public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+		for (CompositeByteBuf assembly : assemblies.values()) {
+			assembly.release();
+		}
+		assemblies.clear();
+		for (Spool spool : spools.values()) {
+			spool.discard();
+		}
+		spools.clear();
+		spooledBytes = 0;
+		held.clear();
+		super.channelInactive(ctx);
+	}
+
+	/**
+	 * a received content, kept in a temporary file so it does not take heap however long it is.
+	 * the file is created and written one piece after the other by the content executor, the
+	 * io thread only hands it the pieces and learns when the last one is on disk
+	 */
+	private class Spool {
+		private final long transferId;
+		private final SerialExecutor writer = new SerialExecutor(contentExecutor);
+		//content executor only
+		private File file;
+		private RandomAccessFile output;
+		//a write failed or was rejected, the content is dropped
+		private volatile boolean failed;
+		//set by the io thread, the writer skips what is left
+		private volatile boolean discarded;
+		//io thread only
+		private long length;
+		private boolean received;
+		private boolean done;
+		private boolean aborted;
+		//aborted by this side's limits or a failed write, not by the sender
+		private boolean abortedHere;
+
+		public Spool(long transferId) {
+			this.transferId = transferId;
+		}
+
+		public void add(final ChannelHandlerContext ctx, ByteBuf piece, boolean last, boolean abortedBySender) {
+			if(received) {
+				return;
+			}
+			received = last;
+			aborted |= abortedBySender;
+			if(!aborted && spooledBytes + piece.readableBytes() > maxSpoolBytes) {
+				LOGGER.warn("contents on one connection exceed " + maxSpoolBytes + " bytes, abort content " + transferId);
+				aborted = true;
+				abortedHere = true;
+			}
+			if(!aborted && piece.isReadable()) {
+				length += piece.readableBytes();
+				spooledBytes += piece.readableBytes();
+				final ByteBuf retained = piece.retain();
+				execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							write(retained);
+						} finally {
+							retained.release();
+						}
+					}
+				}, retained);
+			}
+			if(last) {
+				final boolean keep = !aborted;
+				execute(new Runnable() {
+					@Override
+					public void run() {
+						final boolean written = finish(keep);
+						try {
+							ctx.executor().execute(new Runnable() {
+								@Override
+								public void run() {
+									if(keep && !written) {
+										aborted = true;
+										abortedHere = true;
+									}
+									done = true;
+									if(!discarded) {
+										release(ctx);
+									}
+								}
+							});
+						} catch (RejectedExecutionException e) {
+							//the connection is gone, nobody takes the content
+							LOGGER.warn("drop content " + transferId + ", io thread rejected it", e);
+							deleteFile();
+						}
+					}
+				}, null);
+			}
+		}
+
+		private void execute(Runnable task, ByteBuf piece) {
+			try {
+				writer.execute(task);
+			} catch (RejectedExecutionException e) {
+				LOGGER.warn("content executor rejected content " + transferId, e);
+				failed = true;
+				//a piece is dropped, finishing and cleaning up run here
+				if(piece != null) {
+					piece.release();
+				}
+				else {
+					task.run();
+				}
+			}
+		}
+
+		private void write(ByteBuf piece) {
+			if(discarded || failed) {
+				return;
+			}
+			try {
+				if(output == null) {
+					file = File.createTempFile("jremoting", ".content");
+					output = new RandomAccessFile(file, "rw");
+				}
+				FileChannel channel = output.getChannel();
+				int index = piece.readerIndex();
+				int end = piece.writerIndex();
+				while (index < end) {
+					index += piece.getBytes(index, channel, end - index);
+				}
+			} catch (IOException e) {
+				LOGGER.warn("spool content " + transferId + " failed", e);
+				failed = true;
+			} catch (RuntimeException e) {
+				LOGGER.warn("spool content " + transferId + " failed", e);
+				failed = true;
+			}
+		}
+
+		/**
+		 * false if the content was not kept
+		 */
+		private boolean finish(boolean keep) {
+			closeOutput();
+			keep &= !failed && !discarded;
+			if(!keep) {
+				deleteFile();
+				return false;
+			}
+			if(file == null) {
+				//an empty content
+				try {
+					file = File.createTempFile("jremoting", ".content");
+				} catch (IOException e) {
+					LOGGER.warn("spool content " + transferId + " failed", e);
+					return false;
+				} catch (RuntimeException e) {
+					LOGGER.warn("spool content " + transferId + " failed", e);
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private void closeOutput() {
+			if(output != null) {
+				try {
+					output.close();
+				} catch (IOException e) {
+					LOGGER.warn("close content failed", e);
+					failed = true;
+				}
+				output = null;
+			}
+		}
+
+		private void deleteFile() {
+			if(file != null) {
+				file.delete();
+				file = null;
+			}
+		}
+
+		public boolean isDone() {
+			return done;
+		}
+
+		public boolean isAborted() {
+			return aborted;
+		}
+
+		/**
+		 * the receiver owns the file, an InputStream deletes it when closed
+		 */
+		public Object open(Class<?> type) {
+			if(aborted) {
+				return null;
+			}
+			final File content = file;
+			if(type == File.class) {
+				return content;
+			}
+			try {
+				return new FileInputStream(content) {
+					@Override
+					public void close() throws IOException {
+						super.close();
+						content.delete();
+					}
+				};
+			} catch (IOException e) {
+				throw new RemotingException("open content failed", e);
+			}
+		}
+
+		public void discard() {
+			discarded = true;
+			execute(new Runnable() {
+				@Override
+				public void run() {
+					closeOutput();
+					deleteFile();
+				}
+			}, null);
+		}
+	}
+
+	/**
+	 * writes a frame in pieces of chunkSize
+	 */
+	private class FramePump implements ChannelFutureListener {
+		private final ChannelHandlerContext ctx;
+		private final ByteBuf frame;
+		private final long transferId;
+		private final int chunkSize;
+		private final ChannelPromise promise;
+
+		public FramePump(ChannelHandlerContext ctx, ByteBuf frame, long transferId, int chunkSize, ChannelPromise promise) {
+			this.ctx = ctx;
+			this.frame = frame;
+			this.transferId = transferId;
+			this.chunkSize = chunkSize;
+			this.promise = promise;
+		}
+
+		public void writeNext() {
+			int length = Math.min(chunkSize, frame.readableBytes());
+			boolean last = length == frame.readableBytes();
+			ByteBuf head = encodeHead(ctx, transferId, false, last, false, length);
+			ByteBuf piece = frame.readSlice(length).retain();
+			ctx.writeAndFlush(Unpooled.wrappedBuffer(head, piece)).addListener(this);
+		}
+
+		@Override
+		public void operationComplete(ChannelFuture future) throws Exception {
+			if(!future.isSuccess()) {
+				frame.release();
+				promise.tryFailure(future.cause());
+			}
+			else if(!frame.isReadable()) {
+				frame.release();
+				promise.trySuccess();
+			}
+			else {
+				writeNext();
+			}
+		}
+	}
+
+	/**
+	 * sends a file in pieces of chunkSize, each by sendfile where the transport has it
+	 */
+	private class FilePump implements ChannelFutureListener {
+		private final ChannelHandlerContext ctx;
+		private final long transferId;
+		private final File file;
+		private final int chunkSize;
+		private final long length;
+		private long position;
+
+		public FilePump(ChannelHandlerContext ctx, long transferId, File file, int chunkSize) {
+			this.ctx = ctx;
+			this.transferId = transferId;
+			this.file = file;
+			this.chunkSize = chunkSize;
+			this.length = file.isFile() ? file.length() : -1;
+		}
+
+		public void writeNext() {
+			if(length < 0) {
+				LOGGER.warn("content file " + file + " not readable");
+				ctx.writeAndFlush(encodeHead(ctx, transferId, true, true, true, 0));
+				return;
+			}
+			int pieceLength = (int)Math.min(chunkSize, length - position);
+			boolean last = position + pieceLength == length;
+			ctx.write(encodeHead(ctx, transferId, true, last, false, pieceLength));
+			ChannelFuture future = ctx.writeAndFlush(new DefaultFileRegion(file, position, pieceLength));
+			position += pieceLength;
+			if(!last) {
+				future.addListener(this);
+			}
+		}
+
+		@Override
+		public void operationComplete(ChannelFuture future) throws Exception {
+			//a failed write closes the channel, the peer drops what it got
+			if(future.isSuccess()) {
+				writeNext();
+			}
+		}
+	}
+
+	/**
+	 * sends a stream in pieces of chunkSize, read by the content executor since reads may block
+	 */
+	private class StreamPump implements ChannelFutureListener, Runnable {
+		private final ChannelHandlerContext ctx;
+		private final long transferId;
+		private final InputStream input;
+		private final int chunkSize;
+
+		public StreamPump(ChannelHandlerContext ctx, long transferId, InputStream input, int chunkSize) {
+			this.ctx = ctx;
+			this.transferId = transferId;
+			this.input = input;
+			this.chunkSize = chunkSize;
+		}
+
+		public void readNext() {
+			try {
+				contentExecutor.execute(this);
+			} catch (RejectedExecutionException e) {
+				LOGGER.warn("content executor rejected stream", e);
+				try {
+					input.close();
+				} catch (IOException closeError) {
+					LOGGER.warn("close content failed", closeError);
+				}
+				ctx.writeAndFlush(encodeHead(ctx, transferId, true, true, true, 0));
+			}
+		}
+
+		@Override
+		public void run() {
+			ByteBuf piece = ctx.alloc().ioBuffer(chunkSize);
+			boolean last = false;
+			boolean aborted = false;
+			try {
+				while (piece.isWritable() && !last) {
+					last = piece.writeBytes(input, piece.writableBytes()) < 0;
+				}
+			} catch (IOException e) {
+				LOGGER.warn("read content failed", e);
+				piece.clear();
+				last = true;
+				aborted = true;
+			}
+			if(last) {
+				try {
+					input.close();
+				} catch (IOException e) {
+					LOGGER.warn("close content failed", e);
+				}
+			}
+			ByteBuf head = encodeHead(ctx, transferId, true, last, aborted, piece.readableBytes());
+			ChannelFuture future = ctx.writeAndFlush(Unpooled.wrappedBuffer(head, piece));
+			if(!last) {
+				future.addListener(this);
+			}
+		}
+
+		@Override
+		public void operationComplete(ChannelFuture future) throws Exception {
+			if(future.isSuccess()) {
+				readNext();
+			}
+			else {
+				input.close();
+			}
+		}
+	}
+
 }
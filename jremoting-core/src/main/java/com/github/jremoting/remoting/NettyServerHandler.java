@@ -1,57 +1,625 @@
 package com.github.jremoting.remoting;
 
 
+import java.io.Closeable;
+import java.lang.reflect.Proxy;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import com.github.jremoting.core.CallbackInvoke;
+import com.github.jremoting.core.CallbackReleaseMessage;
+import com.github.jremoting.core.CallbackReference;
+import com.github.jremoting.core.CancelMessage;
 import com.github.jremoting.core.HeartbeatMessage;
 import com.github.jremoting.core.Invoke;
+import com.github.jremoting.core.InvokeContext;
 import com.github.jremoting.core.InvokeResult;
+import com.github.jremoting.core.LazyBody;
+import com.github.jremoting.core.Message;
+import com.github.jremoting.core.MessageFutureListener;
+import com.github.jremoting.core.StreamCreditMessage;
+import com.github.jremoting.core.StreamResult;
+import com.github.jremoting.exception.ConnectFailedException;
+import com.github.jremoting.exception.ServerBusyException;
+import com.github.jremoting.exception.TimeoutException;
 import com.github.jremoting.invoke.ServerInvokeFilterChain;
 import com.github.jremoting.util.Logger;
 import com.github.jremoting.util.LoggerFactory;
+import com.github.jremoting.util.LongObjectMap;
 
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelDuplexHandler;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
 
 
 
 public class NettyServerHandler extends ChannelDuplexHandler {
 	private static final Logger LOGGER = LoggerFactory.getLogger(NettyServerHandler.class);
 	private final ServerInvokeFilterChain invokeFilterChain;
-	private final Executor executor;
-	
+	private final InvokeDispatcher dispatcher;
+	//shared by all connections of the server, counts invokes accepted but not answered yet
+	private final AtomicInteger pendingInvokes;
+	//0 means unbounded
+	private final int maxPendingInvokes;
+	private final boolean interruptOnCancel;
+	//invokes of this connection not answered yet, key = msgId. only touched by the event loop
+	private final LongObjectMap<InvokeTask> runningTasks = new LongObjectMap<InvokeTask>();
+	//streams waiting for the channel to become writable. only touched by the event loop
+	private final List<StreamPump> suspendedPumps = new ArrayList<StreamPump>();
+	private static final int STREAM_FLUSH_EVERY = 64;
+	//two way callbacks sent to the consumer not answered yet, key = msgId. only touched by the event loop
+	private final LongObjectMap<DefaultMessageFuture> callbackFutures = new LongObjectMap<DefaultMessageFuture>();
+	private long nextCallbackMsgId = 0;
+	//one way callbacks wait on it while the channel is not writable
+	private final Object writableLock = new Object();
+	//the proxy of each callback argument of this connection, key = callbackId#type. guarded by itself
+	private final Map<String, CallbackRef> callbackRefs = new HashMap<String, CallbackRef>();
+	private final ReferenceQueue<Object> collectedCallbacks = new ReferenceQueue<Object>();
+
+	/**
+	 * weak, so the consumer is told when the provider dropped the proxy
+	 */
+	private static class CallbackRef extends WeakReference<Object> {
+		private final String key;
+		private final CallbackProxy proxy;
+		//times the consumer sent the id for this proxy
+		private int references = 0;
+
+		CallbackRef(String key, Object callback, CallbackProxy proxy, ReferenceQueue<Object> queue) {
+			super(callback, queue);
+			this.key = key;
+			this.proxy = proxy;
+		}
+	}
+
 	public NettyServerHandler(Executor executor, ServerInvokeFilterChain invokeFilterChain) {
-		this.executor = executor;
+		this(new InvokeDispatcher(executor), invokeFilterChain, new AtomicInteger(0), 0, false);
+	}
+
+	public NettyServerHandler(InvokeDispatcher dispatcher, ServerInvokeFilterChain invokeFilterChain,
+			AtomicInteger pendingInvokes, int maxPendingInvokes, boolean interruptOnCancel) {
+		this.dispatcher = dispatcher;
 		this.invokeFilterChain = invokeFilterChain;
+		this.pendingInvokes = pendingInvokes;
+		this.maxPendingInvokes = maxPendingInvokes;
+		this.interruptOnCancel = interruptOnCancel;
 	}
-	
+
 	@Override
 	public void channelRead(final ChannelHandlerContext ctx, Object msg)
 			throws Exception {
+		expungeCallbacks(ctx.channel());
 		if(msg instanceof HeartbeatMessage) {
 			HeartbeatMessage heartbeatMessage = (HeartbeatMessage)msg;
 			if(heartbeatMessage.isTwoWay()) {
 				ctx.writeAndFlush(HeartbeatMessage.PONG);
 			}
 		}
-		else if(msg instanceof Invoke) {
+		else if(msg instanceof CancelMessage) {
+			InvokeTask task = runningTasks.remove(((CancelMessage)msg).getId());
+			if(task != null) {
+				task.cancel();
+				task.wakePump();
+				resumeStreams(ctx);
+			}
+		}
+		else if(msg instanceof StreamCreditMessage) {
+			InvokeTask task = runningTasks.get(((StreamCreditMessage)msg).getId());
+			if(task != null) {
+				task.grantCredit(((StreamCreditMessage)msg).getCredit());
+			}
+		}
+		else if(msg instanceof InvokeResult) {
+			//the consumer answered a callback
+			InvokeResult invokeResult = (InvokeResult)msg;
+			DefaultMessageFuture future = callbackFutures.remove(invokeResult.getId());
+			if(future != null) {
+				future.setResult(invokeResult instanceof LazyBody ? invokeResult : invokeResult.getResult());
+			}
+		}
+		else if(msg instanceof Invoke && !(msg instanceof CallbackInvoke)) {
 			final Invoke invoke = (Invoke)msg;
-			
-			executor.execute(new Runnable() {
+
+			if(pendingInvokes.incrementAndGet() > maxPendingInvokes && maxPendingInvokes > 0) {
+				pendingInvokes.decrementAndGet();
+				rejectBusy(ctx, invoke, "pending invokes exceed " + maxPendingInvokes);
+				return;
+			}
+
+			InvokeTask task = new InvokeTask(ctx, invoke);
+			runningTasks.put(invoke.getId(), task);
+			try {
+				dispatcher.select(invoke).execute(task);
+			} catch (RejectedExecutionException e) {
+				runningTasks.remove(invoke.getId());
+				pendingInvokes.decrementAndGet();
+				rejectBusy(ctx, invoke, "executor rejected invoke");
+			}
+		}
+		else {
+			ctx.fireChannelRead(msg);
+		}
+	}
+
+	@Override
+	public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+		if(msg instanceof DefaultMessageFuture) {
+			DefaultMessageFuture future = (DefaultMessageFuture)msg;
+			Message message = future.getMessage();
+			//timed out before the event loop got to it
+			if(future.isDone()) {
+				promise.trySuccess();
+				return;
+			}
+			message.setId(nextCallbackMsgId++);
+			callbackFutures.put(message.getId(), future);
+			ctx.write(message, promise);
+			return;
+		}
+		//results are written through the channel, so they pass here on the event loop
+		if(msg instanceof InvokeResult && (!(msg instanceof StreamResult) || ((StreamResult)msg).isEnd())) {
+			runningTasks.remove(((InvokeResult)msg).getId());
+		}
+		ctx.write(msg, promise);
+	}
+
+	@Override
+	public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+		//nobody is left to read the results
+		for (InvokeTask task : runningTasks.values()) {
+			task.cancel();
+			task.wakePump();
+		}
+		runningTasks.clear();
+		resumeStreams(ctx);
+		synchronized (callbackRefs) {
+			callbackRefs.clear();
+		}
+		if(!callbackFutures.isEmpty()) {
+			ConnectFailedException exception = new ConnectFailedException("callback connection closed:" + ctx.channel().remoteAddress());
+			for (DefaultMessageFuture future : callbackFutures.values()) {
+				future.setResult(exception);
+			}
+			callbackFutures.clear();
+		}
+		synchronized (writableLock) {
+			writableLock.notifyAll();
+		}
+		ctx.fireChannelInactive();
+	}
+
+	@Override
+	public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+		resumeStreams(ctx);
+		if(ctx.channel().isWritable()) {
+			synchronized (writableLock) {
+				writableLock.notifyAll();
+			}
+		}
+		ctx.fireChannelWritabilityChanged();
+	}
+
+	/**
+	 * the provider gets a proxy for each callback argument, its calls go back over this channel.
+	 * the same callback gets the same proxy while the provider holds it
+	 */
+	private void bindCallbacks(ChannelHandlerContext ctx, Invoke invoke) {
+		Object[] args = invoke.getArgs();
+		if(args == null) {
+			return;
+		}
+		for (int i = 0; i < args.length; i++) {
+			if(args[i] instanceof CallbackReference) {
+				args[i] = bindCallback(ctx.channel(), ((CallbackReference)args[i]).getCallbackId(),
+						invoke.getParameterTypes()[i], invoke);
+			}
+		}
+	}
+
+	private Object bindCallback(Channel channel, int callbackId, Class<?> type, Invoke invoke) {
+		expungeCallbacks(channel);
+		String key = callbackId + "#" + type.getName();
+		synchronized (callbackRefs) {
+			CallbackRef ref = callbackRefs.get(key);
+			Object callback = ref == null ? null : ref.get();
+			if(callback == null) {
+				//collected but not expunged yet, the consumer still counts its references
+				if(ref != null) {
+					callbackRefs.remove(key);
+					sendRelease(channel, ref);
+				}
+				callback = CallbackProxy.newProxy(this, channel, callbackId, type, invoke.getSerializer());
+				ref = new CallbackRef(key, callback, (CallbackProxy)Proxy.getInvocationHandler(callback),
+						collectedCallbacks);
+				callbackRefs.put(key, ref);
+			}
+			ref.references++;
+			return callback;
+		}
+	}
+
+	/**
+	 * called by {@link CallbackProxy#release(Object)}
+	 */
+	void releaseCallback(CallbackProxy proxy) {
+		String key = proxy.getCallbackId() + "#" + proxy.getType().getName();
+		CallbackRef ref;
+		synchronized (callbackRefs) {
+			ref = callbackRefs.get(key);
+			if(ref == null || ref.proxy != proxy) {
+				return;
+			}
+			callbackRefs.remove(key);
+			ref.clear();
+		}
+		sendRelease(proxy.getChannel(), ref);
+	}
+
+	/**
+	 * tell the consumer about proxies the provider dropped without releasing them
+	 */
+	private void expungeCallbacks(Channel channel) {
+		Reference<?> collected;
+		while ((collected = collectedCallbacks.poll()) != null) {
+			CallbackRef ref = (CallbackRef)collected;
+			synchronized (callbackRefs) {
+				if(callbackRefs.get(ref.key) != ref) {
+					continue;
+				}
+				callbackRefs.remove(ref.key);
+			}
+			sendRelease(channel, ref);
+		}
+	}
+
+	private void sendRelease(Channel channel, CallbackRef ref) {
+		if(channel.isActive()) {
+			channel.writeAndFlush(new CallbackReleaseMessage(ref.proxy.getCallbackId(), ref.references))
+					.addListener(ChannelFutureListener.FIRE_EXCEPTION_ON_FAILURE);
+		}
+	}
+
+	/**
+	 * called by a provider thread before a one way callback, so a consumer that reads slower than
+	 * the provider calls holds the provider back. returns at once on the event loop, it cannot wait for itself
+	 */
+	void awaitWritable(Channel channel, long timeout) throws InterruptedException {
+		if(channel.eventLoop().inEventLoop()) {
+			return;
+		}
+		long deadline = System.currentTimeMillis() + timeout;
+		synchronized (writableLock) {
+			while (channel.isActive() && !channel.isWritable()) {
+				long remaining = deadline - System.currentTimeMillis();
+				if(remaining <= 0) {
+					throw new TimeoutException("callback connection not writable in " + timeout + "ms");
+				}
+				writableLock.wait(remaining);
+			}
+		}
+	}
+
+	/**
+	 * the provider stopped waiting for a two way callback
+	 */
+	void abandonCallback(Channel channel, final CallbackInvoke invoke) {
+		channel.eventLoop().execute(new Runnable() {
+			@Override
+			public void run() {
+				callbackFutures.remove(invoke.getId());
+			}
+		});
+	}
+
+	/**
+	 * on the event loop, continue the suspended streams that can write again or have to clean up
+	 */
+	private void resumeStreams(ChannelHandlerContext ctx) {
+		if(suspendedPumps.isEmpty()) {
+			return;
+		}
+		boolean writable = ctx.channel().isWritable() || !ctx.channel().isActive();
+		Iterator<StreamPump> iterator = suspendedPumps.iterator();
+		while (iterator.hasNext()) {
+			StreamPump pump = iterator.next();
+			if(writable || pump.invoke.isCancelled()) {
+				iterator.remove();
+				pump.resume();
+			}
+		}
+	}
+
+	private class InvokeTask implements Runnable {
+		private final ChannelHandlerContext ctx;
+		private final Invoke invoke;
+		//guarded by this
+		private Thread runner;
+		//set before the first element goes out, so credit granted for it finds the pump
+		private volatile StreamPump pump;
+
+		public InvokeTask(ChannelHandlerContext ctx, Invoke invoke) {
+			this.ctx = ctx;
+			this.invoke = invoke;
+		}
+
+		/**
+		 * on the event loop, the caller took more elements of the stream
+		 */
+		void grantCredit(int credit) {
+			StreamPump current = pump;
+			if(current != null) {
+				current.credit.addAndGet(credit);
+				current.wake();
+			}
+		}
+
+		/**
+		 * on the event loop, a pump waiting for credit runs again to see the cancel and clean up
+		 */
+		void wakePump() {
+			StreamPump current = pump;
+			if(current != null) {
+				current.wake();
+			}
+		}
+
+		/**
+		 * called on the event loop. queued work is skipped when it starts, running work sees
+		 * {@link InvokeContext#isCancelled()} and is interrupted if the server is configured to
+		 */
+		public synchronized void cancel() {
+			invoke.setCancelled(true);
+			if(interruptOnCancel && runner != null) {
+				runner.interrupt();
+			}
+		}
+
+		@Override
+		public void run() {
+			if(invoke.isCancelled()) {
+				drop("cancelled");
+				return;
+			}
+			//the caller already gave up, do not waste the provider on it
+			if(invoke.hasDeadline() && invoke.getRemainingMillis() < 0) {
+				drop("expired");
+				return;
+			}
+			//a lazy invoke is deserialized here, off the io thread
+			try {
+				bindCallbacks(ctx, invoke);
+			} catch (RuntimeException e) {
+				writeResult(ctx, invoke, e);
+				return;
+			}
+
+			Object result;
+			synchronized (this) {
+				runner = Thread.currentThread();
+			}
+			InvokeContext.setCurrent(invoke);
+			try {
+				result = invokeFilterChain.invoke(invoke);
+			}
+			catch (Throwable th) {
+				if(!invoke.isCancelled()) {
+					LOGGER.error(th.getMessage(), th);
+				}
+				result = th;
+			}
+			finally {
+				InvokeContext.setCurrent(null);
+				synchronized (this) {
+					runner = null;
+				}
+				//no interrupt can come after runner is cleared, do not leak one into the next task
+				if(invoke.isCancelled() && interruptOnCancel) {
+					Thread.interrupted();
+				}
+			}
+
+			if(invoke.isCancelled()) {
+				drop("cancelled");
+			}
+			else if(invoke.isTwoWay() && result instanceof Iterator) {
+				pump = new StreamPump(ctx, invoke, (Iterator<?>)result);
+				pump.run();
+			}
+			//the worker is free now, the result is written when the provider completes it
+			else if(AsyncResults.isAsync(result)) {
+				AsyncResults.listen(result, new MessageFutureListener() {
+					@Override
+					public void onMessage(Object asyncResult) {
+						writeResult(ctx, invoke, asyncResult);
+					}
+				});
+			}
+			else {
+				writeResult(ctx, invoke, result);
+			}
+		}
+
+		private void drop(String reason) {
+			pendingInvokes.decrementAndGet();
+			if(LOGGER.isDebugEnabled()) {
+				LOGGER.debug("drop " + reason + " invoke " + invoke.getServiceName() + "." + invoke.getMethodName());
+			}
+			//a cancelled task was removed by the cancel already
+			if(!invoke.isCancelled()) {
+				removeLater(ctx, invoke.getId());
+			}
+		}
+	}
+
+	/**
+	 * writes the elements of an Iterator result while the channel is writable and the caller has
+	 * credit left, see {@link StreamIterator#WINDOW}. otherwise the pump gives its thread back and is
+	 * run again by the invoke's executor once the peer read enough, so a slow client holds back the
+	 * provider instead of filling server memory
+	 */
+	private class StreamPump implements Runnable {
+		private final ChannelHandlerContext ctx;
+		private final Invoke invoke;
+		private final Iterator<?> iterator;
+		//elements the caller still takes without queueing more than its window
+		private final AtomicInteger credit = new AtomicInteger(StreamIterator.WINDOW);
+		//event loop only
+		private boolean waitingCredit = false;
+
+		public StreamPump(ChannelHandlerContext ctx, Invoke invoke, Iterator<?> iterator) {
+			this.ctx = ctx;
+			this.invoke = invoke;
+			this.iterator = iterator;
+		}
+
+		@Override
+		public void run() {
+			Channel channel = ctx.channel();
+			InvokeContext.setCurrent(invoke);
+			try {
+				int written = 0;
+				while (true) {
+					if(invoke.isCancelled() || !channel.isActive()) {
+						closeIterator();
+						pendingInvokes.decrementAndGet();
+						return;
+					}
+					if(!channel.isWritable()) {
+						channel.flush();
+						suspend();
+						return;
+					}
+					if(credit.get() <= 0) {
+						channel.flush();
+						awaitCredit();
+						return;
+					}
+					if(!iterator.hasNext()) {
+						break;
+					}
+					credit.decrementAndGet();
+					channel.write(new StreamResult(iterator.next(), invoke.getId(), invoke.getSerializer(), false));
+					if(++written % STREAM_FLUSH_EVERY == 0) {
+						channel.flush();
+					}
+				}
+			}
+			catch (Throwable th) {
+				LOGGER.error(th.getMessage(), th);
+				closeIterator();
+				//an error result ends the stream
+				writeResult(ctx, invoke, th);
+				return;
+			}
+			finally {
+				InvokeContext.setCurrent(null);
+			}
+
+			closeIterator();
+			pendingInvokes.decrementAndGet();
+			channel.writeAndFlush(new StreamResult(null, invoke.getId(), invoke.getSerializer(), true))
+					.addListener(ChannelFutureListener.FIRE_EXCEPTION_ON_FAILURE);
+		}
+
+		private void suspend() {
+			ctx.executor().execute(new Runnable() {
 				@Override
 				public void run() {
-					Object result = invokeFilterChain.invoke(invoke);
-					InvokeResult invokeResult = new InvokeResult(result, invoke.getId(),invoke.getSerializer());
-					ctx.writeAndFlush(invokeResult).addListener(ChannelFutureListener.FIRE_EXCEPTION_ON_FAILURE);
+					suspendedPumps.add(StreamPump.this);
+					//writable again before we got here
+					resumeStreams(ctx);
 				}
 			});
 		}
+
+		private void awaitCredit() {
+			ctx.executor().execute(new Runnable() {
+				@Override
+				public void run() {
+					waitingCredit = true;
+					//granted or cancelled before we got here
+					if(credit.get() > 0 || invoke.isCancelled() || !ctx.channel().isActive()) {
+						wake();
+					}
+				}
+			});
+		}
+
+		/**
+		 * on the event loop, run again if waiting for credit
+		 */
+		void wake() {
+			if(waitingCredit) {
+				waitingCredit = false;
+				resume();
+			}
+		}
+
+		void resume() {
+			try {
+				dispatcher.select(invoke).execute(this);
+			} catch (RejectedExecutionException e) {
+				closeIterator();
+				writeResult(ctx, invoke, new ServerBusyException("server busy: executor rejected stream"));
+			}
+		}
+
+		private void closeIterator() {
+			if(iterator instanceof Closeable) {
+				try {
+					((Closeable)iterator).close();
+				} catch (Exception e) {
+					LOGGER.error(e.getMessage(), e);
+				}
+			}
+		}
+	}
+
+	private void removeLater(ChannelHandlerContext ctx, final long msgId) {
+		ctx.executor().execute(new Runnable() {
+			@Override
+			public void run() {
+				runningTasks.remove(msgId);
+			}
+		});
+	}
+
+	private void writeResult(ChannelHandlerContext ctx, Invoke invoke, Object result) {
+		pendingInvokes.decrementAndGet();
+		if(invoke.isTwoWay()) {
+			InvokeResult invokeResult = new InvokeResult(result, invoke.getId(),invoke.getSerializer());
+			ctx.channel().writeAndFlush(invokeResult).addListener(ChannelFutureListener.FIRE_EXCEPTION_ON_FAILURE);
+		}
 		else {
-			ctx.fireChannelRead(msg);
+			removeLater(ctx, invoke.getId());
 		}
 	}
-	
+
+	/**
+	 * answer straight from the io thread, so the client can retry another provider at once
+	 */
+	private void rejectBusy(ChannelHandlerContext ctx, Invoke invoke, String reason) {
+		if(LOGGER.isDebugEnabled()) {
+			LOGGER.debug("server busy, reject " + invoke.getServiceName() + "." + invoke.getMethodName() + ": " + reason);
+		}
+		if(invoke.isTwoWay()) {
+			InvokeResult busyResult = new InvokeResult(new ServerBusyException("server busy: " + reason),
+					invoke.getId(), invoke.getSerializer());
+			ctx.writeAndFlush(busyResult).addListener(ChannelFutureListener.FIRE_EXCEPTION_ON_FAILURE);
+		}
+	}
+
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause)
             throws Exception {
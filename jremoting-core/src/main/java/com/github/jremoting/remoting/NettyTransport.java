@@ -0,0 +1,58 @@
+package com.github.jremoting.remoting;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.ServerSocketChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+
+import com.github.jremoting.util.Logger;
+import com.github.jremoting.util.LoggerFactory;
+
+/**
+ * choose between the native epoll transport and nio. the channel classes follow the type of the
+ * event loop group, so epoll is used only when the group was created by {@link #newEventLoopGroup(int)}
+ * on a platform where the native library loads.
+ */
+public class NettyTransport {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(NettyTransport.class);
+
+	public static boolean isEpollAvailable() {
+		return Epoll.isAvailable();
+	}
+
+	/**
+	 * epoll event loop group if available, nio otherwise. nThreads = 0 uses netty's default
+	 */
+	public static EventLoopGroup newEventLoopGroup(int nThreads) {
+		return newEventLoopGroup(nThreads, true);
+	}
+
+	public static EventLoopGroup newEventLoopGroup(int nThreads, boolean preferEpoll) {
+		if(preferEpoll) {
+			if(isEpollAvailable()) {
+				return new EpollEventLoopGroup(nThreads);
+			}
+			LOGGER.info("native epoll transport not available, fall back to nio. cause:" + Epoll.unavailabilityCause());
+		}
+		return new NioEventLoopGroup(nThreads);
+	}
+
+	public static boolean isEpoll(EventLoopGroup group) {
+		return group instanceof EpollEventLoopGroup;
+	}
+
+	public static Class<? extends SocketChannel> socketChannelClass(EventLoopGroup group) {
+		return isEpoll(group) ? EpollSocketChannel.class : NioSocketChannel.class;
+	}
+
+	public static Class<? extends ServerSocketChannel> serverSocketChannelClass(EventLoopGroup group) {
+		return isEpoll(group) ? EpollServerSocketChannel.class : NioServerSocketChannel.class;
+	}
+}
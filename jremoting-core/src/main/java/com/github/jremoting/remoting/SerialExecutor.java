@@ -0,0 +1,64 @@
+package com.github.jremoting.remoting;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.github.jremoting.util.Logger;
+import com.github.jremoting.util.LoggerFactory;
+
+/**
+ * runs its tasks one at a time in the order they came, on a thread of the delegate. keeps the
+ * callbacks of one connection in order without running them on the io thread
+ */
+public class SerialExecutor implements Executor {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(SerialExecutor.class);
+
+	private final Executor delegate;
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	//true while a drain is submitted or running
+	private final AtomicBoolean draining = new AtomicBoolean(false);
+
+	private final Runnable drain = new Runnable() {
+		@Override
+		public void run() {
+			while (true) {
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					//a failed task must not stop the ones queued behind it
+					try {
+						task.run();
+					} catch (Throwable e) {
+						LOGGER.error("serial task failed", e);
+					}
+				}
+				draining.set(false);
+				//a task added after the last poll but before the flag was cleared
+				if(tasks.isEmpty() || !draining.compareAndSet(false, true)) {
+					return;
+				}
+			}
+		}
+	};
+
+	public SerialExecutor(Executor delegate) {
+		this.delegate = delegate;
+	}
+
+	@Override
+	public void execute(Runnable task) {
+		tasks.add(task);
+		if(draining.compareAndSet(false, true)) {
+			try {
+				delegate.execute(drain);
+			} catch (RejectedExecutionException e) {
+				tasks.remove(task);
+				draining.set(false);
+				throw e;
+			}
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package com.github.jremoting.remoting;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+/**
+ * fixed size pool with a bounded queue for the invokes of one service or method, so a slow
+ * method can only exhaust its own threads. with the default AbortPolicy a full pool makes the
+ * server answer STATUS_BUSY and the client retries another provider.
+ */
+public class ServiceExecutor extends ThreadPoolExecutor {
+
+	private final String name;
+
+	public ServiceExecutor(String name, int threads, int queueSize) {
+		this(name, threads, queueSize, new ThreadPoolExecutor.AbortPolicy());
+	}
+
+	/**
+	 * queueSize = 0 hands invokes to idle threads only
+	 */
+	public ServiceExecutor(String name, int threads, int queueSize, RejectedExecutionHandler rejectedHandler) {
+		super(threads, threads, 60, TimeUnit.SECONDS, createQueue(queueSize),
+				new DefaultThreadFactory("jremoting-" + name), new CountingRejectedHandler(rejectedHandler));
+		this.name = name;
+	}
+
+	private static BlockingQueue<Runnable> createQueue(int queueSize) {
+		if(queueSize <= 0) {
+			return new SynchronousQueue<Runnable>();
+		}
+		return new ArrayBlockingQueue<Runnable>(queueSize);
+	}
+
+	private static class CountingRejectedHandler implements RejectedExecutionHandler {
+		private final RejectedExecutionHandler delegate;
+		private final AtomicLong rejectedCount = new AtomicLong(0);
+
+		public CountingRejectedHandler(RejectedExecutionHandler delegate) {
+			this.delegate = delegate;
+		}
+
+		@Override
+		public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+			rejectedCount.incrementAndGet();
+			delegate.rejectedExecution(r, executor);
+		}
+	}
+
+	@Override
+	public void setRejectedExecutionHandler(RejectedExecutionHandler handler) {
+		super.setRejectedExecutionHandler(new CountingRejectedHandler(handler));
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getRejectedCount() {
+		return ((CountingRejectedHandler)getRejectedExecutionHandler()).rejectedCount.get();
+	}
+
+	public int getQueueSize() {
+		return getQueue().size();
+	}
+
+	/**
+	 * busy threads / max threads
+	 */
+	public double getUtilization() {
+		return (double)getActiveCount() / getMaximumPoolSize();
+	}
+
+	@Override
+	public String toString() {
+		return name + "[active=" + getActiveCount() + "/" + getMaximumPoolSize()
+				+ ", queued=" + getQueueSize() + ", completed=" + getCompletedTaskCount()
+				+ ", rejected=" + getRejectedCount() + "]";
+	}
+}
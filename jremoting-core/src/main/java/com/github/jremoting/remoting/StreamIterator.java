@@ -0,0 +1,163 @@
+package com.github.jremoting.remoting;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.github.jremoting.core.StreamCreditMessage;
+import com.github.jremoting.exception.RemotingException;
+import com.github.jremoting.exception.ServerErrorException;
+import com.github.jremoting.exception.TimeoutException;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+
+/**
+ * client side of a provider method that returned an Iterator. elements are queued by the event loop
+ * as their frames arrive and taken by the caller. the provider sends at most WINDOW elements ahead of
+ * the caller, each CREDIT_BATCH elements taken grant it as many more with a {@link StreamCreditMessage}.
+ * so a slow caller holds back only its own stream, other invokes on the connection go on. an iterator
+ * dropped without close keeps its window until the connection closes, close it when not reading to its end.
+ */
+public class StreamIterator implements Iterator<Object>, Closeable {
+
+	public static final int WINDOW = 1024;
+	public static final int CREDIT_BATCH = 256;
+
+	private static final Object NULL = new Object();
+	private static final Object END = new Object();
+	private static final Object NONE = new Object();
+
+	private final BlockingQueue<Object> queue = new LinkedBlockingQueue<Object>();
+	private final Channel channel;
+	private final long msgId;
+	//max millis to wait for the next element, 0 waits forever
+	private final long timeout;
+	private final Runnable closeCallback;
+	private final AtomicBoolean closed = new AtomicBoolean(false);
+	//event loop only
+	private boolean overflowed = false;
+
+	//caller thread only
+	private Object next = NONE;
+	private boolean finished = false;
+	private int taken = 0;
+
+	private static class Failure {
+		final Throwable error;
+		Failure(Throwable error) {
+			this.error = error;
+		}
+	}
+
+	/**
+	 * closeCallback runs once on close before the end, to stop the provider
+	 */
+	public StreamIterator(Channel channel, long msgId, long timeout, Runnable closeCallback) {
+		this.channel = channel;
+		this.msgId = msgId;
+		this.timeout = timeout;
+		this.closeCallback = closeCallback;
+	}
+
+	void offer(Object element) {
+		if(closed.get() || overflowed) {
+			return;
+		}
+		//the provider ignores the window, stop it instead of buffering without bound
+		if(queue.size() >= WINDOW) {
+			overflowed = true;
+			queue.add(new Failure(new RemotingException("stream exceeded its window of " + WINDOW + " elements")));
+			closeCallback.run();
+			return;
+		}
+		queue.add(element == null ? NULL : element);
+	}
+
+	void end(Throwable error) {
+		if(closed.get() || overflowed) {
+			return;
+		}
+		queue.add(error == null ? END : new Failure(error));
+	}
+
+	@Override
+	public boolean hasNext() {
+		if(next != NONE) {
+			return true;
+		}
+		if(finished) {
+			return false;
+		}
+
+		Object element;
+		try {
+			element = timeout > 0 ? queue.poll(timeout, TimeUnit.MILLISECONDS) : queue.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			close();
+			throw new RemotingException("interrupted while waiting for stream element");
+		}
+		if(element == null) {
+			close();
+			throw new TimeoutException("no stream element in " + timeout + "ms");
+		}
+		if(element == END) {
+			finished = true;
+			return false;
+		}
+		if(element instanceof Failure) {
+			finished = true;
+			Throwable error = ((Failure)element).error;
+			if(error instanceof RuntimeException) {
+				throw (RuntimeException)error;
+			}
+			throw new ServerErrorException(error.getMessage());
+		}
+		next = element == NULL ? null : element;
+		if(++taken == CREDIT_BATCH) {
+			channel.writeAndFlush(new StreamCreditMessage(msgId, taken)).addListener(ChannelFutureListener.FIRE_EXCEPTION_ON_FAILURE);
+			taken = 0;
+		}
+		return true;
+	}
+
+	@Override
+	public Object next() {
+		if(!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		Object element = next;
+		next = NONE;
+		return element;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * stop reading early, the provider is cancelled and the rest of the elements dropped
+	 */
+	@Override
+	public void close() {
+		if(!closed.compareAndSet(false, true)) {
+			return;
+		}
+		if(!finished) {
+			finished = true;
+			closeCallback.run();
+		}
+		queue.clear();
+		next = NONE;
+	}
+
+	public boolean isClosed() {
+		return closed.get();
+	}
+}
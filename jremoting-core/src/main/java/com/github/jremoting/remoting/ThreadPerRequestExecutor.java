@@ -0,0 +1,159 @@
+package com.github.jremoting.remoting;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import com.github.jremoting.util.Logger;
+import com.github.jremoting.util.LoggerFactory;
+
+/**
+ * run every invoke on a new virtual thread, so providers that block on io need no big pool.
+ * virtual threads are looked up by reflection (jdk 21+), older jdks fall back to a cached pool
+ * of platform threads. maxConcurrency > 0 caps running invokes, an invoke over the cap is
+ * rejected and the server answers STATUS_BUSY.
+ */
+public class ThreadPerRequestExecutor extends AbstractExecutorService {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ThreadPerRequestExecutor.class);
+
+	private final String name;
+	private final ExecutorService delegate;
+	private final boolean virtual;
+	private final int maxConcurrency;
+	//null when unbounded
+	private final Semaphore permits;
+
+	public ThreadPerRequestExecutor(String name) {
+		this(name, 0);
+	}
+
+	public ThreadPerRequestExecutor(String name, int maxConcurrency) {
+		this.name = name;
+		ExecutorService virtualExecutor = newVirtualThreadExecutor("jremoting-" + name + "-");
+		if(virtualExecutor != null) {
+			this.delegate = virtualExecutor;
+			this.virtual = true;
+		}
+		else {
+			LOGGER.info("virtual threads not available, " + name + " runs invokes on cached platform threads");
+			this.delegate = Executors.newCachedThreadPool(new DefaultThreadFactory("jremoting-" + name));
+			this.virtual = false;
+		}
+		this.maxConcurrency = maxConcurrency;
+		this.permits = maxConcurrency > 0 ? new Semaphore(maxConcurrency) : null;
+	}
+
+	private ThreadPerRequestExecutor(ThreadPerRequestExecutor parent, String name, int maxConcurrency) {
+		this.name = name;
+		this.delegate = parent.delegate;
+		this.virtual = parent.virtual;
+		this.maxConcurrency = maxConcurrency;
+		this.permits = maxConcurrency > 0 ? new Semaphore(maxConcurrency) : null;
+	}
+
+	/**
+	 * executor sharing the threads of this one with its own concurrency cap
+	 */
+	public ThreadPerRequestExecutor withLimit(String name, int maxConcurrency) {
+		return new ThreadPerRequestExecutor(this, name, maxConcurrency);
+	}
+
+	private static ExecutorService newVirtualThreadExecutor(String prefix) {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+			ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+			Method newExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+			return (ExecutorService) newExecutor.invoke(null, factory);
+		} catch (Throwable e) {
+			//no such method before jdk 21, preview not enabled on 19 and 20
+			return null;
+		}
+	}
+
+	@Override
+	public void execute(final Runnable command) {
+		if(permits == null) {
+			delegate.execute(command);
+			return;
+		}
+
+		if(!permits.tryAcquire()) {
+			throw new RejectedExecutionException(name + " running invokes exceed " + maxConcurrency);
+		}
+		try {
+			delegate.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						command.run();
+					} finally {
+						permits.release();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	public boolean isVirtual() {
+		return virtual;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getMaxConcurrency() {
+		return maxConcurrency;
+	}
+
+	/**
+	 * running invokes, only tracked when maxConcurrency > 0
+	 */
+	public int getRunning() {
+		return permits == null ? 0 : maxConcurrency - permits.availablePermits();
+	}
+
+	@Override
+	public void shutdown() {
+		delegate.shutdown();
+	}
+
+	@Override
+	public List<Runnable> shutdownNow() {
+		return delegate.shutdownNow();
+	}
+
+	@Override
+	public boolean isShutdown() {
+		return delegate.isShutdown();
+	}
+
+	@Override
+	public boolean isTerminated() {
+		return delegate.isTerminated();
+	}
+
+	@Override
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return delegate.awaitTermination(timeout, unit);
+	}
+
+	@Override
+	public String toString() {
+		return name + "[virtual=" + virtual + ", running=" + getRunning() + "/" + maxConcurrency + "]";
+	}
+}
@@ -1,14 +1,20 @@
 package com.github.jremoting.spring;
 
+import java.util.Map;
+import java.util.concurrent.Executor;
+
 import com.github.jremoting.core.RpcServer;
+import com.github.jremoting.core.ServiceExecutors;
 import com.github.jremoting.core.ServiceProvider;
 
-public class JRemotingProviderBean implements ServiceProvider    {
+public class JRemotingProviderBean implements ServiceProvider, ServiceExecutors    {
 
 	private final String interfaceName;
 	private final String version;
 	private final Object target;
 	private final RpcServer rpcServer;
+	private Executor executor;
+	private Map<String, Executor> methodExecutors;
 	
 	public JRemotingProviderBean(String interfaceName,String version, Object target, RpcServer rpcServer ) {
 		this.interfaceName = interfaceName;
@@ -42,4 +48,22 @@ public class JRemotingProviderBean implements ServiceProvider    {
 	public RpcServer getRpcServer() {
 		return rpcServer;
 	}
+
+	@Override
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	@Override
+	public Map<String, Executor> getMethodExecutors() {
+		return methodExecutors;
+	}
+
+	public void setMethodExecutors(Map<String, Executor> methodExecutors) {
+		this.methodExecutors = methodExecutors;
+	}
 }
@@ -0,0 +1,163 @@
+package com.github.jremoting.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * open addressing map from primitive long to object with linear probing. put and remove do not
+ * allocate unless the table resizes, keys are never boxed. null values are not allowed.
+ * not thread safe.
+ */
+public class LongObjectMap<V> {
+
+	private static final int MIN_CAPACITY = 16;
+
+	private long[] keys;
+	private Object[] values;
+	private int mask;
+	private int size;
+	private final int initialCapacity;
+
+	public LongObjectMap() {
+		this(MIN_CAPACITY);
+	}
+
+	public LongObjectMap(int initialCapacity) {
+		int capacity = MIN_CAPACITY;
+		while (capacity < initialCapacity) {
+			capacity <<= 1;
+		}
+		this.initialCapacity = capacity;
+		allocate(capacity);
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		values = new Object[capacity];
+		mask = capacity - 1;
+	}
+
+	private int indexOf(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		int index = indexOf(key);
+		while (values[index] != null) {
+			if (keys[index] == key) {
+				return (V) values[index];
+			}
+			index = (index + 1) & mask;
+		}
+		return null;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V put(long key, V value) {
+		if (value == null) {
+			throw new NullPointerException("value");
+		}
+		int index = indexOf(key);
+		while (values[index] != null) {
+			if (keys[index] == key) {
+				V old = (V) values[index];
+				values[index] = value;
+				return old;
+			}
+			index = (index + 1) & mask;
+		}
+		keys[index] = key;
+		values[index] = value;
+		//keep load factor under 0.5
+		if (++size > (mask + 1) >> 1) {
+			rehash((mask + 1) << 1);
+		}
+		return null;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V remove(long key) {
+		int index = indexOf(key);
+		while (values[index] != null) {
+			if (keys[index] == key) {
+				V old = (V) values[index];
+				deleteAt(index);
+				size--;
+				//give memory back after a burst of in flight entries
+				if (mask + 1 > initialCapacity && size < (mask + 1) >> 3) {
+					rehash((mask + 1) >> 1);
+				}
+				return old;
+			}
+			index = (index + 1) & mask;
+		}
+		return null;
+	}
+
+	/**
+	 * backward shift deletion, no tombstones are left behind
+	 */
+	private void deleteAt(int index) {
+		int hole = index;
+		int next = (hole + 1) & mask;
+		while (values[next] != null) {
+			int home = indexOf(keys[next]);
+			//move the entry into the hole unless its home slot lies cyclically in (hole, next]
+			if (((next - home) & mask) >= ((next - hole) & mask)) {
+				keys[hole] = keys[next];
+				values[hole] = values[next];
+				hole = next;
+			}
+			next = (next + 1) & mask;
+		}
+		values[hole] = null;
+	}
+
+	private void rehash(int newCapacity) {
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		allocate(newCapacity);
+		for (int i = 0; i < oldValues.length; i++) {
+			if (oldValues[i] != null) {
+				int index = indexOf(oldKeys[i]);
+				while (values[index] != null) {
+					index = (index + 1) & mask;
+				}
+				keys[index] = oldKeys[i];
+				values[index] = oldValues[i];
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	public List<V> values() {
+		List<V> result = new ArrayList<V>(size);
+		for (Object value : values) {
+			if (value != null) {
+				result.add((V) value);
+			}
+		}
+		return result;
+	}
+
+	public void clear() {
+		if (mask + 1 > initialCapacity) {
+			allocate(initialCapacity);
+		} else {
+			for (int i = 0; i < values.length; i++) {
+				values[i] = null;
+			}
+		}
+		size = 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+}
@@ -32,7 +32,8 @@ public class ReflectionUtil {
 		}
 		
 		try {
-			return ReflectionUtil.class.getClassLoader().loadClass(className);
+			//unlike loadClass, forName also knows array names like [B
+			return Class.forName(className, false, ReflectionUtil.class.getClassLoader());
 		} catch (Exception e) {
 			return null;
 		}
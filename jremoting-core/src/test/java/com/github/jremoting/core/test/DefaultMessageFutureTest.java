@@ -0,0 +1,95 @@
+package com.github.jremoting.core.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.github.jremoting.core.Message;
+import com.github.jremoting.core.MessageFutureListener;
+import com.github.jremoting.remoting.CallbackExecutor;
+import com.github.jremoting.remoting.DefaultMessageFuture;
+
+public class DefaultMessageFutureTest {
+
+	private final Message msg = new Message(true, null) {};
+
+	@Test
+	public void testFirstResultWins() throws Exception {
+		DefaultMessageFuture future = new DefaultMessageFuture(msg);
+		Assert.assertTrue(future.setResult("ok"));
+		Assert.assertFalse(future.setResult(new IllegalStateException()));
+		Assert.assertFalse(future.cancel(false));
+		Assert.assertEquals("ok", future.get());
+		Assert.assertTrue(future.isDone());
+		Assert.assertFalse(future.isCancelled());
+	}
+
+	@Test
+	public void testListenersRunInOrder() {
+		DefaultMessageFuture future = new DefaultMessageFuture(msg, CallbackExecutor.INLINE);
+		final List<String> calls = new ArrayList<String>();
+		for (int i = 0; i < 3; i++) {
+			final String name = "listener" + i;
+			future.addListener(new MessageFutureListener() {
+				@Override
+				public void onMessage(Object result) {
+					calls.add(name + ":" + result);
+				}
+			});
+		}
+		future.setResult("done");
+		future.addListener(new MessageFutureListener() {
+			@Override
+			public void onMessage(Object result) {
+				calls.add("late:" + result);
+			}
+		});
+		Assert.assertEquals("[listener0:done, listener1:done, listener2:done, late:done]", calls.toString());
+	}
+
+	@Test
+	public void testGetTimeoutAndWakeUp() throws Exception {
+		final DefaultMessageFuture future = new DefaultMessageFuture(msg);
+		try {
+			future.get(10, TimeUnit.MILLISECONDS);
+			Assert.fail();
+		} catch (TimeoutException e) {
+		}
+
+		new Thread() {
+			@Override
+			public void run() {
+				future.setResult("late");
+			}
+		}.start();
+		Assert.assertEquals("late", future.get(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testCallbackExecutor() throws Exception {
+		CallbackExecutor callbackExecutor = new CallbackExecutor(Executors.newSingleThreadExecutor());
+		DefaultMessageFuture future = new DefaultMessageFuture(msg, callbackExecutor);
+		final CountDownLatch latch = new CountDownLatch(1);
+		final Thread caller = Thread.currentThread();
+		final Thread[] callbackThread = new Thread[1];
+		future.addListener(new MessageFutureListener() {
+			@Override
+			public void onMessage(Object result) {
+				callbackThread[0] = Thread.currentThread();
+				latch.countDown();
+			}
+		});
+		future.setResult("ok");
+		Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+		Assert.assertNotSame(caller, callbackThread[0]);
+		Assert.assertEquals(1, callbackExecutor.getCallbackCount());
+		Assert.assertEquals(0, callbackExecutor.getQueueDepth());
+	}
+}
@@ -1,6 +1,9 @@
 package com.github.jremoting.core.test;
 
+import java.util.concurrent.TimeUnit;
+
 import junit.framework.Assert;
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.embedded.EmbeddedChannel;
 
 import org.junit.Test;
@@ -8,9 +11,17 @@ import org.junit.Test;
 import com.github.jremoting.protocal.JRemotingProtocal;
 import com.github.jremoting.remoting.NettyMessageCodec;
 import com.github.jremoting.serializer.JsonSerializer;
+import com.github.jremoting.core.Callback;
+import com.github.jremoting.core.CallbackInvoke;
+import com.github.jremoting.core.CallbackReleaseMessage;
+import com.github.jremoting.core.CallbackReference;
+import com.github.jremoting.core.CancelMessage;
 import com.github.jremoting.core.Invoke;
 import com.github.jremoting.core.InvokeResult;
+import com.github.jremoting.core.LazyBody;
 import com.github.jremoting.core.Serializer;
+import com.github.jremoting.core.StreamCreditMessage;
+import com.github.jremoting.core.StreamResult;
 import com.github.jremoting.core.test.TestService.HelloInput;
 
 public class JRemotingProtocalTest {
@@ -75,6 +86,416 @@ public class JRemotingProtocalTest {
 		Assert.assertEquals(serializer.getId(), decodedInvocation.getSerializer());
 	}
 	
+	@Test
+	public void testDeadline() {
+		final Invoke  invocation = new Invoke(
+				"com.github.jremoting.core.test.TestService",
+				"1.0", 
+				"hello",
+				serializer,
+				new Object[]{"xhan"},
+				new Class<?>[]{String.class}
+				);
+		invocation.setId(1);
+		invocation.setDeadline(System.nanoTime() + TimeUnit.SECONDS.toNanos(10));
+		
+		//older v1 providers do not understand the deadline status, it is opt in
+		Invoke decodedInvocation = (Invoke)clientToServer(invocation);
+		Assert.assertFalse(decodedInvocation.hasDeadline());
+		Assert.assertEquals("xhan", decodedInvocation.getArgs()[0]);
+		
+		protocal.setV1DeadlineEnabled(true);
+		decodedInvocation = (Invoke)clientToServer(invocation);
+		
+		Assert.assertTrue(decodedInvocation.hasDeadline());
+		Assert.assertTrue(decodedInvocation.getRemainingMillis() > 9000);
+		Assert.assertTrue(decodedInvocation.getRemainingMillis() <= 10000);
+		Assert.assertEquals("xhan", decodedInvocation.getArgs()[0]);
+	}
+	
+	@Test
+	public void testCancel() {
+		EmbeddedChannel clientChannel = new EmbeddedChannel(new NettyMessageCodec(protocal));
+		EmbeddedChannel serverChannel = new EmbeddedChannel(new NettyMessageCodec(protocal));
+		
+		clientChannel.writeOutbound(new CancelMessage(42));
+		serverChannel.writeInbound(clientChannel.readOutbound());
+		
+		Object obj = serverChannel.readInbound();
+		Assert.assertTrue(obj instanceof CancelMessage);
+		Assert.assertEquals(42, ((CancelMessage)obj).getId());
+	}
+	
+	@Test
+	public void testSymbols() {
+		int[] sizes = sendHellos(protocal);
+		//v1 peers may predate symbols, names always go in full
+		Assert.assertEquals(sizes[0], sizes[1]);
+		
+		JRemotingProtocal protocalV2 = new JRemotingProtocal(new Serializer[]{ serializer}, null);
+		protocalV2.setVersion(JRemotingProtocal.VERSION_2);
+		sizes = sendHellos(protocalV2);
+		//names went in full only with the first call
+		Assert.assertTrue(sizes[1] < sizes[0]);
+		Assert.assertEquals(sizes[1], sizes[2]);
+	}
+	
+	private int[] sendHellos(JRemotingProtocal protocal) {
+		EmbeddedChannel clientChannel = new EmbeddedChannel(new NettyMessageCodec(protocal));
+		EmbeddedChannel serverChannel = new EmbeddedChannel(new NettyMessageCodec(protocal));
+		
+		int[] sizes = new int[3];
+		for (int i = 0; i < sizes.length; i++) {
+			Invoke invocation = new Invoke(
+					"com.github.jremoting.core.test.TestService",
+					"1.0", 
+					"hello", serializer,
+					new Object[]{new HelloInput(), "xhan"},
+					new Class<?>[]{HelloInput.class, String.class}
+					);
+			invocation.setId(i);
+			clientChannel.writeOutbound(invocation);
+			ByteBuf buffer = (ByteBuf)clientChannel.readOutbound();
+			sizes[i] = buffer.readableBytes();
+			serverChannel.writeInbound(buffer);
+			
+			Invoke decodedInvocation = (Invoke)serverChannel.readInbound();
+			Assert.assertEquals(i, decodedInvocation.getId());
+			Assert.assertEquals("com.github.jremoting.core.test.TestService", decodedInvocation.getInterfaceName());
+			Assert.assertEquals("1.0", decodedInvocation.getVersion());
+			Assert.assertEquals("hello", decodedInvocation.getMethodName());
+			Assert.assertEquals(HelloInput.class, decodedInvocation.getParameterTypes()[0]);
+			Assert.assertEquals("xhan", decodedInvocation.getArgs()[1]);
+			
+			serverChannel.writeOutbound(new InvokeResult("hello,world", i, serializer));
+			clientChannel.writeInbound(serverChannel.readOutbound());
+			Assert.assertEquals("hello,world", ((InvokeResult)clientChannel.readInbound()).getResult());
+		}
+		return sizes;
+	}
+	
+	@Test
+	public void testVersion2() {
+		JRemotingProtocal protocalV2 = new JRemotingProtocal(new Serializer[]{ serializer}, null);
+		protocalV2.setVersion(JRemotingProtocal.VERSION_2);
+		EmbeddedChannel v1Channel = new EmbeddedChannel(new NettyMessageCodec(protocal));
+		EmbeddedChannel clientChannel = new EmbeddedChannel(new NettyMessageCodec(protocalV2));
+		EmbeddedChannel serverChannel = new EmbeddedChannel(new NettyMessageCodec(protocal));
+		
+		StringBuilder longName = new StringBuilder();
+		for (int i = 0; i < 300; i++) {
+			longName.append('x');
+		}
+		String[] names = new String[]{"xhan", longName.toString(), "xhan"};
+		for (int i = 0; i < names.length; i++) {
+			Invoke invocation = new Invoke(
+					"com.github.jremoting.core.test.TestService",
+					"1.0", 
+					"hello",
+					serializer,
+					new Object[]{names[i]},
+					new Class<?>[]{String.class}
+					);
+			invocation.setId(i);
+			invocation.setDeadline(System.nanoTime() + TimeUnit.SECONDS.toNanos(10));
+			
+			v1Channel.writeOutbound(invocation);
+			clientChannel.writeOutbound(invocation);
+			ByteBuf v1Buffer = (ByteBuf)v1Channel.readOutbound();
+			ByteBuf buffer = (ByteBuf)clientChannel.readOutbound();
+			//the first v2 frame also defines the symbols, v1 frames write names in full
+			if(i > 0) {
+				Assert.assertTrue(buffer.readableBytes() < v1Buffer.readableBytes());
+			}
+			v1Buffer.release();
+			
+			//the v1 server understands v2 and answers in it
+			serverChannel.writeInbound(buffer);
+			Invoke decodedInvocation = (Invoke)serverChannel.readInbound();
+			Assert.assertEquals(i, decodedInvocation.getId());
+			Assert.assertEquals(names[i], decodedInvocation.getArgs()[0]);
+			Assert.assertTrue(decodedInvocation.getRemainingMillis() > 9000);
+			
+			serverChannel.writeOutbound(new InvokeResult(names[i], i, serializer));
+			ByteBuf resultBuffer = (ByteBuf)serverChannel.readOutbound();
+			Assert.assertEquals(0xBA, resultBuffer.getUnsignedByte(0));
+			Assert.assertEquals(JRemotingProtocal.VERSION_2, resultBuffer.getUnsignedByte(1));
+			clientChannel.writeInbound(resultBuffer);
+			InvokeResult result = (InvokeResult)clientChannel.readInbound();
+			Assert.assertEquals(i, result.getId());
+			Assert.assertEquals(names[i], result.getResult());
+		}
+	}
+	
+	@Test
+	public void testAttachments() {
+		JRemotingProtocal protocalV2 = new JRemotingProtocal(new Serializer[]{ serializer}, null);
+		protocalV2.setVersion(JRemotingProtocal.VERSION_2);
+		EmbeddedChannel clientChannel = new EmbeddedChannel(new NettyMessageCodec(protocalV2));
+		EmbeddedChannel serverChannel = new EmbeddedChannel(new NettyMessageCodec(protocal));
+		
+		byte[] blob = new byte[5000];
+		for (int i = 0; i < blob.length; i++) {
+			blob[i] = (byte)i;
+		}
+		java.nio.ByteBuffer small = java.nio.ByteBuffer.wrap(blob, 10, 100);
+		Invoke invocation = new Invoke(TestService.class.getName(), "1.0", "upload", serializer,
+				new Object[]{"blob", blob, small}, new Class<?>[]{String.class, byte[].class, java.nio.ByteBuffer.class});
+		invocation.setId(3);
+		invocation.setDeadline(System.nanoTime() + TimeUnit.SECONDS.toNanos(10));
+		
+		clientChannel.writeOutbound(invocation);
+		ByteBuf buffer = (ByteBuf)clientChannel.readOutbound();
+		//raw, not base64 in the json body
+		Assert.assertTrue(buffer.readableBytes() < blob.length + 300);
+		Assert.assertEquals(10, small.position());
+		
+		serverChannel.writeInbound(buffer);
+		Invoke decodedInvocation = (Invoke)serverChannel.readInbound();
+		Assert.assertEquals("blob", decodedInvocation.getArgs()[0]);
+		Assert.assertEquals(byte[].class, decodedInvocation.getParameterTypes()[1]);
+		Assert.assertTrue(java.util.Arrays.equals(blob, (byte[])decodedInvocation.getArgs()[1]));
+		Assert.assertEquals(small, decodedInvocation.getArgs()[2]);
+		Assert.assertTrue(decodedInvocation.getRemainingMillis() > 9000);
+		
+		serverChannel.writeOutbound(new InvokeResult(blob, 3, serializer));
+		clientChannel.writeInbound(serverChannel.readOutbound());
+		InvokeResult result = (InvokeResult)clientChannel.readInbound();
+		Assert.assertTrue(java.util.Arrays.equals(blob, (byte[])result.getResult()));
+	}
+	
+	@Test
+	public void testChunks() throws Exception {
+		JRemotingProtocal chunkingProtocal = new JRemotingProtocal(new Serializer[]{ serializer}, null);
+		chunkingProtocal.setVersion(JRemotingProtocal.VERSION_2);
+		chunkingProtocal.setChunkSize(1024);
+		EmbeddedChannel clientChannel = new EmbeddedChannel(new NettyMessageCodec(chunkingProtocal, DIRECT, 64, 1 << 20));
+		EmbeddedChannel serverChannel = new EmbeddedChannel(new NettyMessageCodec(chunkingProtocal, DIRECT, 64, 1 << 20));
+		
+		byte[] blob = new byte[5000];
+		for (int i = 0; i < blob.length; i++) {
+			blob[i] = (byte)i;
+		}
+		java.io.File file = java.io.File.createTempFile("chunks", ".test");
+		file.deleteOnExit();
+		java.io.FileOutputStream output = new java.io.FileOutputStream(file);
+		output.write(blob, 0, 3000);
+		output.close();
+		Invoke invocation = new Invoke(TestService.class.getName(), "1.0", "upload", serializer,
+				new Object[]{blob, file}, new Class<?>[]{byte[].class, java.io.File.class});
+		invocation.setId(4);
+		
+		clientChannel.writeOutbound(invocation);
+		int pieces = transfer(clientChannel, serverChannel);
+		//five frame pieces, then three file pieces each behind its head
+		Assert.assertEquals(11, pieces);
+		Invoke decodedInvocation = (Invoke)serverChannel.readInbound();
+		Assert.assertTrue(java.util.Arrays.equals(blob, (byte[])decodedInvocation.getArgs()[0]));
+		Assert.assertEquals(java.io.File.class, decodedInvocation.getParameterTypes()[1]);
+		java.io.File received = (java.io.File)decodedInvocation.getArgs()[1];
+		Assert.assertEquals(3000, received.length());
+		
+		//a frame under the chunk size goes whole, the file behind it
+		serverChannel.writeOutbound(new InvokeResult(received, 4, serializer));
+		Assert.assertEquals(7, transfer(serverChannel, clientChannel));
+		java.io.File result = (java.io.File)((InvokeResult)clientChannel.readInbound()).getResult();
+		byte[] content = new byte[3000];
+		java.io.DataInputStream input = new java.io.DataInputStream(new java.io.FileInputStream(result));
+		input.readFully(content);
+		input.close();
+		Assert.assertTrue(java.util.Arrays.equals(java.util.Arrays.copyOf(blob, 3000), content));
+		received.delete();
+		result.delete();
+		
+		//a connection that may not keep that much on disk aborts the content and answers with an error
+		EmbeddedChannel limitedChannel = new EmbeddedChannel(new NettyMessageCodec(chunkingProtocal, DIRECT, 64, 2000));
+		clientChannel.writeOutbound(invocation);
+		transfer(clientChannel, limitedChannel);
+		Assert.assertNull(limitedChannel.readInbound());
+		//the reply has to go through the codec, an object reaching the head of a real channel fails to write
+		Object reply = limitedChannel.readOutbound();
+		Assert.assertTrue(reply instanceof io.netty.buffer.ByteBuf);
+		Assert.assertNull(limitedChannel.readOutbound());
+		clientChannel.writeInbound(reply);
+		InvokeResult error = (InvokeResult)clientChannel.readInbound();
+		Assert.assertEquals(4, error.getId());
+		Assert.assertTrue(((Throwable)error.getResult()).getMessage().contains("aborted by the receiver"));
+	}
+	
+	private static final java.util.concurrent.Executor DIRECT = new java.util.concurrent.Executor() {
+		@Override
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+	
+	private int transfer(EmbeddedChannel from, EmbeddedChannel to) throws Exception {
+		int count = 0;
+		Object out;
+		while ((out = from.readOutbound()) != null) {
+			if(out instanceof io.netty.channel.FileRegion) {
+				io.netty.channel.FileRegion region = (io.netty.channel.FileRegion)out;
+				java.io.ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream();
+				region.transferTo(java.nio.channels.Channels.newChannel(bytes), 0);
+				region.release();
+				out = io.netty.buffer.Unpooled.wrappedBuffer(bytes.toByteArray());
+			}
+			to.writeInbound(out);
+			count++;
+		}
+		//contents are written to disk off the io thread, they are handed on by a task
+		to.runPendingTasks();
+		return count;
+	}
+	
+	@Test
+	public void testLazyDecode() {
+		JRemotingProtocal lazyProtocal = new JRemotingProtocal(new Serializer[]{ serializer}, null);
+		lazyProtocal.setLazyDecodeThreshold(256);
+		EmbeddedChannel clientChannel = new EmbeddedChannel(new NettyMessageCodec(lazyProtocal));
+		EmbeddedChannel serverChannel = new EmbeddedChannel(new NettyMessageCodec(lazyProtocal));
+		
+		StringBuilder large = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			large.append("hello,world ");
+		}
+		Invoke big = new Invoke(TestService.class.getName(), "1.0", "hello", serializer,
+				new Object[]{large.toString()}, new Class<?>[]{String.class});
+		Invoke small = new Invoke(TestService.class.getName(), "1.0", "hello", serializer,
+				new Object[]{"small"}, new Class<?>[]{String.class});
+		big.setId(1);
+		small.setId(2);
+		clientChannel.writeOutbound(big);
+		clientChannel.writeOutbound(small);
+		serverChannel.writeInbound(clientChannel.readOutbound());
+		serverChannel.writeInbound(clientChannel.readOutbound());
+		
+		Invoke lazyInvoke = (Invoke)serverChannel.readInbound();
+		Invoke eagerInvoke = (Invoke)serverChannel.readInbound();
+		Assert.assertTrue(lazyInvoke instanceof LazyBody);
+		Assert.assertFalse(eagerInvoke instanceof LazyBody);
+		Assert.assertEquals("hello", lazyInvoke.getMethodName());
+		Assert.assertEquals(TestService.class.getName() + ":1.0", lazyInvoke.getServiceName());
+		//the small one uses the names the big one would have defined, and is read first
+		Assert.assertEquals("small", eagerInvoke.getArgs()[0]);
+		Assert.assertEquals(large.toString(), lazyInvoke.getArgs()[0]);
+		Assert.assertEquals(String.class, lazyInvoke.getParameterTypes()[0]);
+		
+		serverChannel.writeOutbound(new InvokeResult(large.toString(), 1, serializer));
+		clientChannel.writeInbound(serverChannel.readOutbound());
+		InvokeResult result = (InvokeResult)clientChannel.readInbound();
+		Assert.assertTrue(result instanceof LazyBody);
+		Assert.assertEquals(large.toString(), result.getResult());
+	}
+	
+	@Test
+	public void testCompression() {
+		JRemotingProtocal compressingProtocal = new JRemotingProtocal(new Serializer[]{ serializer}, null);
+		compressingProtocal.setCompressionThreshold(256);
+		compressingProtocal.setCompressionRatioLimit(0.5);
+		EmbeddedChannel clientChannel = new EmbeddedChannel(new NettyMessageCodec(protocal));
+		EmbeddedChannel serverChannel = new EmbeddedChannel(new NettyMessageCodec(compressingProtocal));
+		
+		StringBuilder repeated = new StringBuilder();
+		StringBuilder random = new StringBuilder();
+		java.util.Random rnd = new java.util.Random(1);
+		for (int i = 0; i < 500; i++) {
+			repeated.append("hello,world ");
+			random.append((char)('a' + rnd.nextInt(26)));
+		}
+		String[] results = new String[]{"hello,world", repeated.toString(), random.toString(), repeated.toString()};
+		int[] sizes = new int[results.length];
+		for (int i = 0; i < results.length; i++) {
+			serverChannel.writeOutbound(new InvokeResult(results[i], i, serializer));
+			ByteBuf buffer = (ByteBuf)serverChannel.readOutbound();
+			sizes[i] = buffer.readableBytes();
+			clientChannel.writeInbound(buffer);
+			Assert.assertEquals(results[i], ((InvokeResult)clientChannel.readInbound()).getResult());
+		}
+		
+		Assert.assertTrue(sizes[1] < results[1].length() / 10);
+		//random letters shrink too little, so the connection backs off for the next messages
+		Assert.assertTrue(sizes[3] > results[3].length());
+	}
+	
+	@Test
+	public void testStream() {
+		Object element = serverToClient(new StreamResult("row", 7, serializer, false));
+		Assert.assertTrue(element instanceof StreamResult);
+		Assert.assertFalse(((StreamResult)element).isEnd());
+		Assert.assertEquals("row", ((StreamResult)element).getResult());
+		
+		Object end = serverToClient(new StreamResult(null, 7, serializer, true));
+		Assert.assertTrue(end instanceof StreamResult);
+		Assert.assertTrue(((StreamResult)end).isEnd());
+		Assert.assertEquals(7, ((StreamResult)end).getId());
+		
+		EmbeddedChannel clientChannel = new EmbeddedChannel(new NettyMessageCodec(protocal));
+		EmbeddedChannel serverChannel = new EmbeddedChannel(new NettyMessageCodec(protocal));
+		clientChannel.writeOutbound(new StreamCreditMessage(7, 256));
+		serverChannel.writeInbound(clientChannel.readOutbound());
+		Object credit = serverChannel.readInbound();
+		Assert.assertTrue(credit instanceof StreamCreditMessage);
+		Assert.assertEquals(7, ((StreamCreditMessage)credit).getId());
+		Assert.assertEquals(256, ((StreamCreditMessage)credit).getCredit());
+	}
+	
+	@Callback
+	public interface Listener {
+		void onEvent(String event);
+	}
+	
+	@Test
+	public void testCallback() {
+		Listener listener = new Listener() {
+			@Override
+			public void onEvent(String event) {
+			}
+		};
+		Invoke invoke = new Invoke(TestService.class.getName(), "1.0", "subscribe", serializer,
+				new Object[]{"topic", listener}, new Class<?>[]{String.class, Listener.class});
+		
+		EmbeddedChannel clientChannel = new EmbeddedChannel(new NettyMessageCodec(protocal));
+		EmbeddedChannel serverChannel = new EmbeddedChannel(new NettyMessageCodec(protocal));
+		clientChannel.writeOutbound(invoke);
+		serverChannel.writeInbound(clientChannel.readOutbound());
+		Invoke received = (Invoke)serverChannel.readInbound();
+		Assert.assertEquals("topic", received.getArgs()[0]);
+		Assert.assertEquals(Listener.class, received.getParameterTypes()[1]);
+		Assert.assertTrue(received.getArgs()[1] instanceof CallbackReference);
+		
+		int callbackId = ((CallbackReference)received.getArgs()[1]).getCallbackId();
+		CallbackInvoke callbackInvoke = new CallbackInvoke(callbackId, false, Listener.class.getName(), "onEvent",
+				serializer, new Object[]{"changed"}, new Class<?>[]{String.class});
+		serverChannel.writeOutbound(callbackInvoke);
+		clientChannel.writeInbound(serverChannel.readOutbound());
+		Object obj = clientChannel.readInbound();
+		Assert.assertTrue(obj instanceof CallbackInvoke);
+		CallbackInvoke call = (CallbackInvoke)obj;
+		Assert.assertFalse(call.isTwoWay());
+		Assert.assertSame(listener, call.getTarget());
+		Assert.assertEquals("changed", call.getArgs()[0]);
+		
+		//once the provider released its proxy the consumer forgets the listener and reuses the id
+		serverChannel.writeOutbound(new CallbackReleaseMessage(callbackId, 1));
+		clientChannel.writeInbound(serverChannel.readOutbound());
+		Assert.assertTrue(clientChannel.readInbound() instanceof CallbackReleaseMessage);
+		serverChannel.writeOutbound(callbackInvoke);
+		clientChannel.writeInbound(serverChannel.readOutbound());
+		Assert.assertNull(((CallbackInvoke)clientChannel.readInbound()).getTarget());
+		
+		Listener other = new Listener() {
+			@Override
+			public void onEvent(String event) {
+			}
+		};
+		clientChannel.writeOutbound(new Invoke(TestService.class.getName(), "1.0", "subscribe", serializer,
+				new Object[]{"topic", other}, new Class<?>[]{String.class, Listener.class}));
+		serverChannel.writeInbound(clientChannel.readOutbound());
+		received = (Invoke)serverChannel.readInbound();
+		Assert.assertEquals(callbackId, ((CallbackReference)received.getArgs()[1]).getCallbackId());
+	}
+	
 	@Test
 	public void testServerToClient() {
 
@@ -0,0 +1,63 @@
+package com.github.jremoting.core.test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.github.jremoting.util.LongObjectMap;
+
+public class LongObjectMapTest {
+
+	@Test
+	public void testPutGetRemove() {
+		LongObjectMap<String> map = new LongObjectMap<String>();
+		Assert.assertNull(map.put(0, "zero"));
+		Assert.assertNull(map.put(-1, "minus one"));
+		Assert.assertEquals("zero", map.put(0, "0"));
+		Assert.assertEquals(2, map.size());
+		Assert.assertEquals("0", map.get(0));
+		Assert.assertEquals("minus one", map.remove(-1));
+		Assert.assertNull(map.get(-1));
+		Assert.assertNull(map.remove(-1));
+		Assert.assertEquals(1, map.size());
+	}
+
+	@Test
+	public void testSequentialIdsGrowAndShrink() {
+		LongObjectMap<Long> map = new LongObjectMap<Long>();
+		for (long i = 0; i < 300000; i++) {
+			map.put(i, i);
+		}
+		Assert.assertEquals(300000, map.size());
+		for (long i = 0; i < 300000; i++) {
+			Assert.assertEquals(Long.valueOf(i), map.remove(i));
+		}
+		Assert.assertTrue(map.isEmpty());
+		Assert.assertNull(map.get(42));
+	}
+
+	@Test
+	public void testRandomAgainstHashMap() {
+		LongObjectMap<Long> map = new LongObjectMap<Long>();
+		Map<Long, Long> expected = new HashMap<Long, Long>();
+		Random random = new Random(7);
+		for (int i = 0; i < 200000; i++) {
+			long key = random.nextInt(5000);
+			if(random.nextBoolean()) {
+				Assert.assertEquals(expected.put(key, key), map.put(key, key));
+			}
+			else {
+				Assert.assertEquals(expected.remove(key), map.remove(key));
+			}
+			Assert.assertEquals(expected.size(), map.size());
+		}
+		for (Long key : expected.keySet()) {
+			Assert.assertEquals(key, map.get(key));
+		}
+		Assert.assertEquals(expected.size(), map.values().size());
+	}
+}
@@ -0,0 +1,66 @@
+package com.github.jremoting.remoting;
+
+import java.lang.reflect.Proxy;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.github.jremoting.core.Bulk;
+import com.github.jremoting.core.Invoke;
+import com.github.jremoting.core.RpcClient;
+import com.github.jremoting.core.ServiceParticipantInfo;
+import com.github.jremoting.invoke.ClientInvocationHandler;
+
+public class DefaultMessageChannelTest {
+
+	public interface FileService {
+		@Bulk
+		void export(String name);
+
+		void upload(byte[] content);
+	}
+
+	@Test
+	public void testBulkRouting() {
+		DefaultMessageChannel channel = new DefaultMessageChannel(null, null);
+		channel.setBulkThreshold(1024);
+		FileService service = proxy();
+
+		service.export("a");
+		Assert.assertTrue(channel.isBulk(lastInvoke));
+
+		service.upload(new byte[1024]);
+		Assert.assertTrue(channel.isBulk(lastInvoke));
+
+		service.upload(new byte[16]);
+		Assert.assertFalse(channel.isBulk(lastInvoke));
+
+		channel.setBulkThreshold(0);
+		service.upload(new byte[1024]);
+		Assert.assertFalse(channel.isBulk(lastInvoke));
+	}
+
+	private Invoke lastInvoke;
+
+	private FileService proxy() {
+		RpcClient client = new RpcClient() {
+			@Override
+			public Object invoke(Invoke invoke) {
+				lastInvoke = invoke;
+				return null;
+			}
+			@Override
+			public void register(ServiceParticipantInfo consumerInfo) {
+			}
+			@Override
+			public void close() {
+			}
+			@Override
+			public void start() {
+			}
+		};
+		return (FileService)Proxy.newProxyInstance(FileService.class.getClassLoader(), new Class<?>[] {FileService.class},
+				new ClientInvocationHandler(client, null, FileService.class.getName(), "1.0", null, 3000));
+	}
+}